@@ -4,6 +4,7 @@ import io.github.lunbun.pulsar.component.drawing.BlockingTimer;
 import io.github.lunbun.pulsar.component.drawing.CommandPool;
 import io.github.lunbun.pulsar.component.drawing.FrameSynchronizer;
 import io.github.lunbun.pulsar.component.drawing.Framebuffer;
+import io.github.lunbun.pulsar.component.drawing.ParallelRecorder;
 import io.github.lunbun.pulsar.component.pipeline.GraphicsPipeline;
 import io.github.lunbun.pulsar.component.pipeline.RenderPass;
 import io.github.lunbun.pulsar.component.pipeline.Shader;
@@ -17,11 +18,17 @@ import io.github.lunbun.pulsar.component.texture.TextureSampler;
 import io.github.lunbun.pulsar.component.uniform.DescriptorPool;
 import io.github.lunbun.pulsar.component.uniform.DescriptorSetLayout;
 import io.github.lunbun.pulsar.component.vertex.Buffer;
+import io.github.lunbun.pulsar.component.vertex.Defragmenter;
 import io.github.lunbun.pulsar.component.vertex.MemoryAllocator;
+import io.github.lunbun.pulsar.component.vertex.QuadIndexBuffer;
+import io.github.lunbun.pulsar.component.vertex.UploadQueue;
 import io.github.lunbun.pulsar.struct.setup.DeviceExtension;
 import io.github.lunbun.pulsar.struct.setup.GraphicsCardPreference;
 import io.github.lunbun.pulsar.struct.setup.QueueFamily;
+import io.github.lunbun.pulsar.struct.vertex.MemoryStatistics;
+import io.github.lunbun.pulsar.util.PulsarSettings;
 import io.github.lunbun.pulsar.util.misc.CommandBufferRecorder;
+import io.github.lunbun.pulsar.util.misc.RenderPassRecorder;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -46,12 +53,20 @@ public final class PulsarApplication {
     private SwapChain swapChain;
     private final SwapChainManager swapChainManager;
     private MemoryAllocator memoryAllocator;
+    private Defragmenter defragmenter;
+    private UploadQueue uploads;
     private final ImageViewsManager imageViews;
-    private CommandPool commandPool;
+    // one time command buffers on the graphics queue, like upload ownership transfers and defragmentation copies
+    private CommandPool uploadPool;
+    private CommandPool transferPool;
+    // only used by the upload queue, so that workers can record uploads without locking the other pools
+    private CommandPool stagingPool;
 
     private GraphicsCardPreference graphicsCardPreference;
     private long windowHandle;
     private final List<CommandBufferRecorder> commandBufferRecorders;
+    private final List<RenderPassRecorder> renderPassRecorders;
+    private ParallelRecorder parallelRecorder;
 
     public RenderPass.Builder renderPasses;
     public GraphicsPipeline.Builder pipelines;
@@ -60,6 +75,7 @@ public final class PulsarApplication {
     public BlockingTimer.Builder timings;
     public FrameSynchronizer frameRenderer;
     public Buffer.Builder buffers;
+    public QuadIndexBuffer quadIndices;
     public DescriptorSetLayout.Builder descriptorSetLayouts;
     public DescriptorPool descriptorPool;
     public Texture.Loader textureLoader;
@@ -72,6 +88,7 @@ public final class PulsarApplication {
         this.imageViews = new ImageViewsManager();
         this.swapChainManager = new SwapChainManager();
         this.commandBufferRecorders = new ObjectArrayList<>();
+        this.renderPassRecorders = new ObjectArrayList<>();
     }
 
     public void requestGraphicsCard(GraphicsCardPreference preference) {
@@ -114,7 +131,7 @@ public final class PulsarApplication {
                 .map(QueueFamily::toString)
                 .map(String::toLowerCase)
                 .collect(Collectors.joining(" queue, ")) + " queue");
-        LOGGER.info("Using " + this.graphicsCardPreference.extensions.stream()
+        LOGGER.info("Using " + this.logicalDevice.enabledExtensions.stream()
                 .map(DeviceExtension::toString)
                 .map(String::toLowerCase)
                 .collect(Collectors.joining(" extension, ")) + " extension");
@@ -129,35 +146,61 @@ public final class PulsarApplication {
         this.imageViews.createImageViews(this.logicalDevice, swapChain);
         LOGGER.info("Created image views");
 
-        this.memoryAllocator = new MemoryAllocator(this.logicalDevice);
+        this.memoryAllocator = new MemoryAllocator(this.logicalDevice, physicalDevice);
         this.shaders = new Shader.Builder(this.logicalDevice);
         this.pipelines = new GraphicsPipeline.Builder(this.logicalDevice, this.shaders, swapChain);
         this.renderPasses = new RenderPass.Builder(this.logicalDevice, swapChain);
         this.framebuffers = new Framebuffer.Builder(this.logicalDevice, swapChain, this.imageViews);
-        this.commandPool = new CommandPool(this.logicalDevice, swapChain, physicalDevice, this.surface, this.graphicsCardPreference);
+        this.uploadPool = new CommandPool(this.logicalDevice, swapChain, physicalDevice, this.surface, this.graphicsCardPreference);
         this.timings = new BlockingTimer.Builder(this.logicalDevice);
-        this.frameRenderer = new FrameSynchronizer(this.logicalDevice, swapChain, this.swapChainManager, this.queues, this.commandPool,
-                this.timings);
+        // every frame in flight records from its own command pool
+        this.frameRenderer = new FrameSynchronizer(this.logicalDevice, swapChain, this.swapChainManager, this.queues,
+                physicalDevice, this.surface, this.graphicsCardPreference, this.timings);
         this.frameRenderer.init();
+        this.parallelRecorder = new ParallelRecorder(this.logicalDevice, swapChain, physicalDevice, this.surface,
+                this.graphicsCardPreference, PulsarSettings.RECORDING_THREADS);
+        this.addCommandBufferDestructor(ignored -> this.parallelRecorder.invalidateCaches());
         this.frameRenderer.bufferRecorder = (commandBuffer, index, currentFrame) -> {
             commandBuffer.startRecordingOneTimeSubmit();
+            this.frameRenderer.latency.writeStart(commandBuffer, currentFrame);
             for (CommandBufferRecorder recorder : this.commandBufferRecorders) {
                 recorder.record(commandBuffer, index, currentFrame);
             }
+            this.parallelRecorder.record(commandBuffer, this.renderPassRecorders, index, currentFrame);
+            this.frameRenderer.latency.writeEnd(commandBuffer, currentFrame);
             commandBuffer.endRecording();
         };
-        this.buffers = new Buffer.Builder(this.logicalDevice, physicalDevice, this.commandPool, this.queues, this.memoryAllocator);
+        this.stagingPool = new CommandPool(this.logicalDevice, swapChain, physicalDevice, this.surface,
+                this.graphicsCardPreference);
+        this.transferPool = this.queues.hasQueue(QueueFamily.TRANSFER) ? new CommandPool(this.logicalDevice, swapChain,
+                physicalDevice, this.surface, this.graphicsCardPreference, QueueFamily.TRANSFER) : this.stagingPool;
+        this.uploads = new UploadQueue(this.logicalDevice, physicalDevice, this.memoryAllocator, this.transferPool,
+                this.stagingPool, this.queues, this.timings);
+        // uploads are submitted before the defragmenter copies anything, so that a buffer is never moved before its
+        // contents are uploaded
+        this.frameRenderer.addFrameHandler(ignored -> this.uploads.submit());
+        // host writes to non coherent memory that the frame reads have to be flushed before it is submitted
+        this.frameRenderer.addSubmitHandler(this.memoryAllocator::flushMappedRanges);
+        this.defragmenter = new Defragmenter(this.logicalDevice, this.memoryAllocator, this.uploadPool, this.queues,
+                this.uploads, this.timings);
+        this.frameRenderer.addFrameHandler(this.defragmenter::defragment);
+        this.frameRenderer.addFrameHandler(ignored -> this.memoryAllocator.releaseEmptySlots());
+        this.buffers = new Buffer.Builder(this.logicalDevice, physicalDevice, this.uploads, this.memoryAllocator,
+                this.defragmenter);
+        this.quadIndices = new QuadIndexBuffer(this.buffers);
+        this.frameRenderer.addFrameHandler(this.quadIndices::beginFrame);
         this.descriptorSetLayouts = new DescriptorSetLayout.Builder(this.logicalDevice);
         this.descriptorPool = new DescriptorPool(this.logicalDevice, 2 * MAX_FRAMES_IN_FLIGHT);
-        this.textureLoader = new Texture.Loader(this.logicalDevice, physicalDevice, this.memoryAllocator, this.commandPool, this.queues);
+        this.textureLoader = new Texture.Loader(this.logicalDevice, physicalDevice, this.memoryAllocator, this.uploads);
         this.textureSamplers = new TextureSampler.Builder(this.logicalDevice, physicalDevice);
         LOGGER.info("Setup pulsar-quasar interaction");
 
-        this.swapChainManager.assign(this.logicalDevice, swapChain, this.framebuffers, this.commandPool,
+        this.swapChainManager.assign(this.logicalDevice, swapChain, this.framebuffers, this.uploadPool,
                 this.pipelines, this.renderPasses, this.imageViews, this.windowHandle);
-        this.addCommandBufferDestructor(ignored -> {
-            this.frameRenderer.freeBuffers();
-        });
+    }
+
+    public MemoryStatistics getMemoryStatistics() {
+        return this.memoryAllocator.getStatistics();
     }
 
     public void endLoop() {
@@ -176,12 +219,29 @@ public final class PulsarApplication {
         this.commandBufferRecorders.add(handler);
     }
 
+    /**
+     * Adds a render pass that is recorded in parallel with the others, after every command buffer recorder. Render
+     * passes are executed in the order they were added.
+     */
+    public void addRenderPassRecorder(RenderPassRecorder recorder) {
+        this.renderPassRecorders.add(recorder);
+    }
+
     public void exit() {
         this.swapChainManager.cleanup();
+        this.uploads.destroy();
+        this.quadIndices.destroy();
+        this.defragmenter.destroy();
         this.memoryAllocator.destroy();
         this.descriptorPool.destroy();
         this.timings.destroy();
-        this.commandPool.destroy();
+        this.parallelRecorder.destroy();
+        this.frameRenderer.destroy();
+        if (this.transferPool != this.stagingPool) {
+            this.transferPool.destroy();
+        }
+        this.stagingPool.destroy();
+        this.uploadPool.destroy();
         this.logicalDevice.destroy();
         ValidationLayerUtils.destroy(this.instance);
         this.surface.destroy();
@@ -5,28 +5,39 @@ import io.github.lunbun.pulsar.component.pipeline.RenderPass;
 import io.github.lunbun.pulsar.component.presentation.SwapChain;
 import io.github.lunbun.pulsar.component.uniform.DescriptorSet;
 import io.github.lunbun.pulsar.struct.setup.QueueFamily;
+import io.github.lunbun.pulsar.struct.vertex.BufferData;
 import io.github.lunbun.pulsar.struct.vertex.Mesh;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
 import java.nio.LongBuffer;
+import java.util.List;
+import java.util.Map;
 
 public final class CommandBuffer {
+    // most regions put into a single copy command, so that the regions always fit on the stack
+    private static final int MAX_COPY_REGIONS = 256;
+
     public final VkCommandBuffer buffer;
     private final SwapChain swapChain;
 
     private boolean isRecording = false;
     private boolean inRenderPass = false;
 
+    // batched copies that haven't been recorded yet, by their source and destination
+    private final Map<CopyKey, CopyGroup> copyGroups = new Object2ObjectOpenHashMap<>();
+    private final List<CopyGroup> copyOrder = new ObjectArrayList<>();
+
     protected CommandBuffer(SwapChain swapChain, VkCommandBuffer buffer) {
         this.swapChain = swapChain;
         this.buffer = buffer;
     }
 
-    public void reset() {
-        VK10.vkResetCommandBuffer(this.buffer, 0);
-    }
-
     private void assertRecording() {
         if (!this.isRecording) {
             throw new RuntimeException("Not recording command buffer!");
@@ -61,8 +72,43 @@ public final class CommandBuffer {
         this.startRecording(VK10.VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
     }
 
+    /**
+     * Starts recording a secondary command buffer that continues a render pass, which it is in until it ends
+     * @param oneTimeSubmit if the buffer is recorded again before it is executed again
+     */
+    public void startRecordingSecondary(RenderPass renderPass, Framebuffer framebuffer, boolean oneTimeSubmit) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkCommandBufferInheritanceInfo inheritanceInfo = VkCommandBufferInheritanceInfo.callocStack(stack);
+            inheritanceInfo.sType(VK10.VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_INFO);
+            inheritanceInfo.renderPass(renderPass.renderPass);
+            inheritanceInfo.subpass(0);
+            inheritanceInfo.framebuffer(framebuffer.framebuffer);
+
+            VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
+            beginInfo.sType(VK10.VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+            beginInfo.flags(VK10.VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT |
+                    (oneTimeSubmit ? VK10.VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT : 0));
+            beginInfo.pInheritanceInfo(inheritanceInfo);
+            if (VK10.vkBeginCommandBuffer(this.buffer, beginInfo) != VK10.VK_SUCCESS) {
+                throw new RuntimeException("Failed to begin recording command buffer!");
+            }
+            this.isRecording = true;
+            this.inRenderPass = true;
+        }
+    }
+
     public void startRenderPass(RenderPass renderPass, Framebuffer framebuffer) {
+        this.startRenderPass(renderPass, framebuffer, false);
+    }
+
+    /**
+     * @param secondary if the contents of the render pass are recorded into secondary command buffers, which then is
+     *                  the only thing that can be recorded until the render pass ends
+     */
+    public void startRenderPass(RenderPass renderPass, Framebuffer framebuffer, boolean secondary) {
         this.assertRecording();
+        // copies can't be recorded inside of a render pass
+        this.flushCopies();
         try (MemoryStack stack = MemoryStack.stackPush()) {
             VkRenderPassBeginInfo renderPassInfo = VkRenderPassBeginInfo.callocStack(stack);
             renderPassInfo.sType(VK10.VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO);
@@ -80,31 +126,144 @@ public final class CommandBuffer {
 
             renderPassInfo.framebuffer(framebuffer.framebuffer);
 
-            VK10.vkCmdBeginRenderPass(this.buffer, renderPassInfo, VK10.VK_SUBPASS_CONTENTS_INLINE);
+            VK10.vkCmdBeginRenderPass(this.buffer, renderPassInfo, secondary ?
+                    VK10.VK_SUBPASS_CONTENTS_SECONDARY_COMMAND_BUFFERS : VK10.VK_SUBPASS_CONTENTS_INLINE);
         }
 
         this.inRenderPass = true;
     }
 
     public void copyBuffer(long src, long dst, int size) {
+        this.copyBuffer(src, 0, dst, 0, size);
+    }
+
+    public void copyBuffer(long src, long srcOffset, long dst, long dstOffset, int size) {
         this.assertRecording();
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            // TODO: batch copy buffers
             VkBufferCopy.Buffer copyRegion = VkBufferCopy.callocStack(1, stack);
+            copyRegion.srcOffset(srcOffset);
+            copyRegion.dstOffset(dstOffset);
             copyRegion.size(size);
             VK10.vkCmdCopyBuffer(this.buffer, src, dst, copyRegion);
         }
     }
 
+    private CopyGroup getCopyGroup(long src, long dst, boolean toImage) {
+        CopyKey key = new CopyKey(src, dst);
+        CopyGroup group = this.copyGroups.get(key);
+        if (group == null) {
+            group = new CopyGroup(src, dst, toImage);
+            this.copyGroups.put(key, group);
+            this.copyOrder.add(group);
+        }
+        return group;
+    }
+
+    /**
+     * Adds a region to the copy between two buffers, which is recorded by {@link #flushCopies()} along with every other
+     * region between the same buffers. Barriers that the copy depends on have to be recorded before the flush.
+     */
+    public void batchCopyBuffer(long src, long srcOffset, long dst, long dstOffset, long size) {
+        this.assertRecording();
+        LongList regions = this.getCopyGroup(src, dst, false).regions;
+        regions.add(srcOffset);
+        regions.add(dstOffset);
+        regions.add(size);
+    }
+
+    /**
+     * Adds a region to the copy from a buffer to an image in the transfer destination layout, like
+     * {@link #batchCopyBuffer(long, long, long, long, long)}
+     */
+    public void batchCopyBufferToImage(long buffer, long bufferOffset, long image, int x, int y, int width,
+                                       int height) {
+        this.assertRecording();
+        LongList regions = this.getCopyGroup(buffer, image, true).regions;
+        regions.add(bufferOffset);
+        regions.add(x);
+        regions.add(y);
+        regions.add(width);
+        regions.add(height);
+    }
+
+    /**
+     * Records every batched copy, with one copy command for each source and destination.
+     */
+    public void flushCopies() {
+        for (CopyGroup group : this.copyOrder) {
+            int stride = group.toImage ? 5 : 3;
+            int regionCount = group.regions.size() / stride;
+
+            for (int first = 0; first < regionCount; first += MAX_COPY_REGIONS) {
+                int count = Math.min(MAX_COPY_REGIONS, regionCount - first);
+                try (MemoryStack stack = MemoryStack.stackPush()) {
+                    if (group.toImage) {
+                        VkBufferImageCopy.Buffer pRegions = VkBufferImageCopy.callocStack(count, stack);
+                        for (int i = 0; i < count; ++i) {
+                            int index = (first + i) * stride;
+                            VkBufferImageCopy region = pRegions.get(i);
+                            region.bufferOffset(group.regions.getLong(index));
+                            region.imageSubresource()
+                                    .aspectMask(VK10.VK_IMAGE_ASPECT_COLOR_BIT)
+                                    .mipLevel(0)
+                                    .baseArrayLayer(0)
+                                    .layerCount(1);
+                            region.imageOffset().set((int) group.regions.getLong(index + 1),
+                                    (int) group.regions.getLong(index + 2), 0);
+                            region.imageExtent().set((int) group.regions.getLong(index + 3),
+                                    (int) group.regions.getLong(index + 4), 1);
+                        }
+                        this.copyBufferToImage(group.src, group.dst, pRegions);
+                    } else {
+                        VkBufferCopy.Buffer pRegions = VkBufferCopy.callocStack(count, stack);
+                        for (int i = 0; i < count; ++i) {
+                            int index = (first + i) * stride;
+                            VkBufferCopy region = pRegions.get(i);
+                            region.srcOffset(group.regions.getLong(index));
+                            region.dstOffset(group.regions.getLong(index + 1));
+                            region.size(group.regions.getLong(index + 2));
+                        }
+                        VK10.vkCmdCopyBuffer(this.buffer, group.src, group.dst, pRegions);
+                    }
+                }
+            }
+        }
+
+        this.copyGroups.clear();
+        this.copyOrder.clear();
+    }
+
     public void pipelineBarrier(VkImageMemoryBarrier.Buffer pBarriers, int srcStage, int dstStage) {
         this.assertRecording();
         VK10.vkCmdPipelineBarrier(this.buffer, srcStage, dstStage, 0, null,
                 null, pBarriers);
     }
 
+    public void pipelineBarrier(VkMemoryBarrier.Buffer pBarriers, int srcStage, int dstStage) {
+        this.assertRecording();
+        VK10.vkCmdPipelineBarrier(this.buffer, srcStage, dstStage, 0, pBarriers, null, null);
+    }
+
+    public void pipelineBarrier(int srcStage, int dstStage, VkMemoryBarrier.Buffer pMemoryBarriers,
+                                VkBufferMemoryBarrier.Buffer pBufferMemoryBarriers,
+                                VkImageMemoryBarrier.Buffer pImageMemoryBarriers) {
+        this.assertRecording();
+        VK10.vkCmdPipelineBarrier(this.buffer, srcStage, dstStage, 0, pMemoryBarriers, pBufferMemoryBarriers,
+                pImageMemoryBarriers);
+    }
+
+    public void resetQueryPool(long queryPool, int firstQuery, int queryCount) {
+        this.assertRecording();
+        VK10.vkCmdResetQueryPool(this.buffer, queryPool, firstQuery, queryCount);
+    }
+
+    public void writeTimestamp(int stage, long queryPool, int query) {
+        this.assertRecording();
+        VK10.vkCmdWriteTimestamp(this.buffer, stage, queryPool, query);
+    }
+
     public void copyBufferToImage(long buffer, long image, VkBufferImageCopy.Buffer pRegions) {
         this.assertRecording();
-        // TODO: copying different regions
         VK10.vkCmdCopyBufferToImage(this.buffer, buffer, image, VK10.VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, pRegions);
     }
 
@@ -117,15 +276,28 @@ public final class CommandBuffer {
         this.assertRenderPass();
         try (MemoryStack stack = MemoryStack.stackPush()) {
             LongBuffer pBuffers = stack.longs(mesh.vertexBuffer.buffer);
-            LongBuffer pOffsets = stack.longs(0);
+            LongBuffer pOffsets = stack.longs(mesh.vertexBuffer.offset);
             VK10.vkCmdBindVertexBuffers(this.buffer, 0, pBuffers, pOffsets);
 
             if (mesh.indexBuffer != null) {
-                VK10.vkCmdBindIndexBuffer(this.buffer, mesh.indexBuffer.buffer, 0, VK10.VK_INDEX_TYPE_UINT16);
+                VK10.vkCmdBindIndexBuffer(this.buffer, mesh.indexBuffer.buffer, mesh.indexBuffer.offset,
+                        VK10.VK_INDEX_TYPE_UINT16);
             }
         }
     }
 
+    public void bindVertexBuffer(BufferData buffer) {
+        this.assertRenderPass();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VK10.vkCmdBindVertexBuffers(this.buffer, 0, stack.longs(buffer.buffer), stack.longs(buffer.offset));
+        }
+    }
+
+    public void bindIndexBuffer(BufferData buffer) {
+        this.assertRenderPass();
+        VK10.vkCmdBindIndexBuffer(this.buffer, buffer.buffer, buffer.offset, VK10.VK_INDEX_TYPE_UINT16);
+    }
+
     public void bindDescriptorSet(GraphicsPipeline pipeline, DescriptorSet descriptorSet) {
         this.assertRenderPass();
         try (MemoryStack stack = MemoryStack.stackPush()) {
@@ -143,6 +315,40 @@ public final class CommandBuffer {
         }
     }
 
+    public void draw(int vertexCount, int instanceCount, int firstVertex, int firstInstance) {
+        this.assertRenderPass();
+        VK10.vkCmdDraw(this.buffer, vertexCount, instanceCount, firstVertex, firstInstance);
+    }
+
+    public void drawIndexed(int indexCount, int instanceCount, int firstIndex, int vertexOffset, int firstInstance) {
+        this.assertRenderPass();
+        VK10.vkCmdDrawIndexed(this.buffer, indexCount, instanceCount, firstIndex, vertexOffset, firstInstance);
+    }
+
+    /**
+     * Executes a secondary command buffer, which has finished recording
+     */
+    public void executeCommands(CommandBuffer buffer) {
+        this.assertRenderPass();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VK10.vkCmdExecuteCommands(this.buffer, stack.pointers(buffer.buffer));
+        }
+    }
+
+    /**
+     * Executes secondary command buffers, which have finished recording
+     */
+    public void executeCommands(List<CommandBuffer> buffers) {
+        this.assertRenderPass();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            PointerBuffer pCommandBuffers = stack.mallocPointer(buffers.size());
+            for (int i = 0; i < buffers.size(); ++i) {
+                pCommandBuffers.put(i, buffers.get(i).buffer);
+            }
+            VK10.vkCmdExecuteCommands(this.buffer, pCommandBuffers);
+        }
+    }
+
     public void endRenderPass() {
         this.assertRenderPass();
         VK10.vkCmdEndRenderPass(this.buffer);
@@ -151,14 +357,18 @@ public final class CommandBuffer {
 
     public void endRecording() {
         this.assertRecording();
+        this.flushCopies();
         if (VK10.vkEndCommandBuffer(this.buffer) != VK10.VK_SUCCESS) {
             throw new RuntimeException("Failed to record command buffer!");
         }
         this.isRecording = false;
+        // secondary command buffers end inside of the render pass they continue
+        this.inRenderPass = false;
     }
 
     public void endRecordingOneTimeSubmit(VkQueue queue, CommandPool commandPool) {
         this.assertRecording();
+        this.flushCopies();
         if (VK10.vkEndCommandBuffer(this.buffer) != VK10.VK_SUCCESS) {
             throw new RuntimeException("Failed to record command buffer!");
         }
@@ -176,4 +386,43 @@ public final class CommandBuffer {
 
         this.isRecording = false;
     }
+
+    private static final class CopyKey {
+        public final long src;
+        public final long dst;
+
+        public CopyKey(long src, long dst) {
+            this.src = src;
+            this.dst = dst;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CopyKey)) {
+                return false;
+            }
+            CopyKey key = (CopyKey) o;
+            return (this.src == key.src) && (this.dst == key.dst);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(this.src) * 31 + Long.hashCode(this.dst);
+        }
+    }
+
+    private static final class CopyGroup {
+        public final long src;
+        public final long dst;
+        public final boolean toImage;
+        // buffer copies are (src offset, dst offset, size), image copies are (buffer offset, x, y, width, height)
+        public final LongList regions;
+
+        public CopyGroup(long src, long dst, boolean toImage) {
+            this.src = src;
+            this.dst = dst;
+            this.toImage = toImage;
+            this.regions = new LongArrayList();
+        }
+    }
 }
@@ -6,7 +6,6 @@ import io.github.lunbun.pulsar.component.setup.LogicalDevice;
 import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
 import io.github.lunbun.pulsar.struct.setup.GraphicsCardPreference;
 import io.github.lunbun.pulsar.struct.setup.QueueFamily;
-import io.github.lunbun.pulsar.util.PulsarSettings;
 import io.github.lunbun.pulsar.util.vulkan.DeviceUtils;
 import io.github.lunbun.pulsar.util.vulkan.QueueFamilyIndices;
 import org.lwjgl.PointerBuffer;
@@ -24,6 +23,22 @@ public final class CommandPool {
 
     public CommandPool(LogicalDevice device, SwapChain swapChain, PhysicalDevice physicalDevice, WindowSurface surface,
                        GraphicsCardPreference preference) {
+        this(device, swapChain, physicalDevice, surface, preference, QueueFamily.GRAPHICS);
+    }
+
+    /**
+     * Creates a command pool for the queues of a family, command buffers from it can only be submitted to those queues
+     */
+    public CommandPool(LogicalDevice device, SwapChain swapChain, PhysicalDevice physicalDevice, WindowSurface surface,
+                       GraphicsCardPreference preference, QueueFamily family) {
+        this(device, swapChain, physicalDevice, surface, preference, family, 0);
+    }
+
+    /**
+     * Creates a command pool with the given VkCommandPoolCreateFlags
+     */
+    public CommandPool(LogicalDevice device, SwapChain swapChain, PhysicalDevice physicalDevice, WindowSurface surface,
+                       GraphicsCardPreference preference, QueueFamily family, int flags) {
         this.swapChain = swapChain;
         this.device = device;
 
@@ -32,10 +47,8 @@ public final class CommandPool {
 
             VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.callocStack(stack);
             poolInfo.sType(VK10.VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO);
-            poolInfo.queueFamilyIndex(indices.getFamilyIndex(QueueFamily.GRAPHICS));
-            if (PulsarSettings.RESET_COMMAND_BUFFERS) {
-                poolInfo.flags(VK10.VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT);
-            }
+            poolInfo.queueFamilyIndex(indices.getFamilyIndex(family));
+            poolInfo.flags(flags);
 
             LongBuffer pCommandPool = stack.longs(VK10.VK_NULL_HANDLE);
 
@@ -48,11 +61,22 @@ public final class CommandPool {
     }
 
     public CommandBuffer allocateBuffer() {
+        return this.allocateBuffer(VK10.VK_COMMAND_BUFFER_LEVEL_PRIMARY);
+    }
+
+    /**
+     * Allocates a command buffer that is recorded inside of a render pass, and executed by a primary command buffer
+     */
+    public CommandBuffer allocateSecondaryBuffer() {
+        return this.allocateBuffer(VK10.VK_COMMAND_BUFFER_LEVEL_SECONDARY);
+    }
+
+    private CommandBuffer allocateBuffer(int level) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
             VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.callocStack(stack);
             allocInfo.sType(VK10.VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
             allocInfo.commandPool(this.commandPool);
-            allocInfo.level(VK10.VK_COMMAND_BUFFER_LEVEL_PRIMARY);
+            allocInfo.level(level);
             allocInfo.commandBufferCount(1);
 
             PointerBuffer pCommandBuffers = stack.mallocPointer(1);
@@ -85,6 +109,13 @@ public final class CommandPool {
         }
     }
 
+    /**
+     * Resets every command buffer of the pool at once, none of them may still be executing
+     */
+    public void reset() {
+        VK10.vkResetCommandPool(this.device.device, this.commandPool, 0);
+    }
+
     public void destroy() {
         VK10.vkDestroyCommandPool(this.device.device, this.commandPool, null);
     }
@@ -0,0 +1,98 @@
+package io.github.lunbun.pulsar.component.drawing;
+
+import io.github.lunbun.pulsar.component.setup.LogicalDevice;
+import io.github.lunbun.pulsar.struct.drawing.Frame;
+import io.github.lunbun.pulsar.util.misc.MathUtils;
+import org.lwjgl.vulkan.VK10;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Paces frames with a single frame counter. Every submitted frame gets the next frame number, and the CPU waits for an
+ * exact frame number to complete instead of for a fence of a frame or an image.
+ * Frame n is recorded into frame in flight n % count, whose fence is the only one that can signal its completion. A
+ * fence signal also covers everything submitted to the queue before it, so once frame n completes, every frame before
+ * it has completed too.
+ */
+public final class FramePacer {
+    private final LogicalDevice device;
+    private final List<Frame> frames;
+
+    // the number of the next frame to be submitted
+    private long nextFrame;
+    // every frame before this one is known to have completed
+    private long completedFrames;
+    // the number of the last frame that rendered to each swap chain image, or -1
+    private long[] imageFrames;
+
+    public FramePacer(LogicalDevice device, List<Frame> frames) {
+        this.device = device;
+        this.frames = frames;
+        this.nextFrame = 0;
+        this.completedFrames = 0;
+        this.imageFrames = new long[0];
+    }
+
+    public long getNextFrame() {
+        return this.nextFrame;
+    }
+
+    public int getFrameInFlight(long frameNumber) {
+        return (int) (frameNumber % this.frames.size());
+    }
+
+    public boolean isComplete(long frameNumber) {
+        return frameNumber < this.completedFrames;
+    }
+
+    /**
+     * Blocks until a frame has completed on the GPU, which returns at once if it is already known to have completed
+     */
+    public void waitForFrame(long frameNumber) {
+        if (frameNumber < 0 || this.isComplete(frameNumber)) {
+            return;
+        }
+        if (frameNumber >= this.nextFrame) {
+            throw new RuntimeException("Cannot wait for a frame that has not been submitted!");
+        }
+
+        Frame frame = this.frames.get(this.getFrameInFlight(frameNumber));
+        VK10.vkWaitForFences(this.device.device, frame.fence.handle, true, MathUtils.UINT64_MAX);
+        this.completedFrames = frameNumber + 1;
+    }
+
+    /**
+     * Waits until the frame in flight of the next frame is free, which is the frame that used it last
+     */
+    public void waitForNextFrame() {
+        this.waitForFrame(this.nextFrame - this.frames.size());
+    }
+
+    /**
+     * Waits for the last frame that rendered to an image, in case the swap chain hands out images out of order
+     */
+    public void waitForImage(int imageIndex, int imageCount) {
+        if (this.imageFrames.length != imageCount) {
+            // only happens when the swap chain is (re)created, after waiting for the device to be idle
+            this.imageFrames = new long[imageCount];
+            Arrays.fill(this.imageFrames, -1);
+        }
+        this.waitForFrame(this.imageFrames[imageIndex]);
+        this.imageFrames[imageIndex] = this.nextFrame;
+    }
+
+    /**
+     * Called once the next frame has been submitted with the fence of its frame in flight
+     */
+    public void submitted() {
+        ++this.nextFrame;
+    }
+
+    /**
+     * Called once the device is idle, so that every submitted frame has completed
+     */
+    public void idle() {
+        this.completedFrames = this.nextFrame;
+    }
+}
@@ -2,12 +2,16 @@ package io.github.lunbun.pulsar.component.drawing;
 
 import io.github.lunbun.pulsar.component.presentation.SwapChain;
 import io.github.lunbun.pulsar.component.presentation.SwapChainManager;
+import io.github.lunbun.pulsar.component.presentation.WindowSurface;
 import io.github.lunbun.pulsar.component.setup.LogicalDevice;
+import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
 import io.github.lunbun.pulsar.component.setup.QueueManager;
 import io.github.lunbun.pulsar.struct.drawing.Frame;
+import io.github.lunbun.pulsar.struct.setup.GraphicsCardPreference;
 import io.github.lunbun.pulsar.struct.setup.QueueFamily;
-import io.github.lunbun.pulsar.util.PulsarSettings;
 import io.github.lunbun.pulsar.util.misc.CommandBufferRecorder;
+import io.github.lunbun.pulsar.util.PulsarSettings;
+import io.github.lunbun.pulsar.util.misc.FrameHandler;
 import io.github.lunbun.pulsar.util.misc.MathUtils;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.lwjgl.system.MemoryStack;
@@ -18,68 +22,111 @@ import java.nio.LongBuffer;
 import java.util.List;
 
 public final class FrameSynchronizer {
-    public static final int MAX_FRAMES_IN_FLIGHT = 2;
+    // set once at startup, see PulsarSettings.FRAMES_IN_FLIGHT
+    public static final int MAX_FRAMES_IN_FLIGHT = PulsarSettings.FRAMES_IN_FLIGHT;
 
     public final LogicalDevice device;
     public final SwapChain swapChain;
     public final SwapChainManager swapChainManager;
     public final QueueManager queues;
-    public final CommandPool commandPool;
+    private final PhysicalDevice physicalDevice;
+    private final WindowSurface surface;
+    private final GraphicsCardPreference preference;
     public final BlockingTimer.Builder timings;
     public boolean framebufferResized;
     public CommandBufferRecorder bufferRecorder;
+    private final List<FrameHandler> frameHandlers;
+    // run right before the frame is submitted, after it has been recorded
+    private final List<Runnable> submitHandlers;
 
     private List<Frame> frames;
-    private List<Frame> framesInFlight;
+    public FramePacer pacer;
+    public LatencyPacer latency;
     private int currentFrame;
 
-    public FrameSynchronizer(LogicalDevice device, SwapChain swapChain, SwapChainManager swapChainManager, QueueManager queues, CommandPool commandPool, BlockingTimer.Builder timings) {
+    public FrameSynchronizer(LogicalDevice device, SwapChain swapChain, SwapChainManager swapChainManager, QueueManager queues,
+                             PhysicalDevice physicalDevice, WindowSurface surface, GraphicsCardPreference preference,
+                             BlockingTimer.Builder timings) {
         this.device = device;
         this.swapChain = swapChain;
         this.swapChainManager = swapChainManager;
         this.queues = queues;
-        this.commandPool = commandPool;
+        this.physicalDevice = physicalDevice;
+        this.surface = surface;
+        this.preference = preference;
         this.timings = timings;
         this.framebufferResized = false;
+        this.frameHandlers = new ObjectArrayList<>();
+        this.submitHandlers = new ObjectArrayList<>();
+    }
+
+    public void addFrameHandler(FrameHandler handler) {
+        this.frameHandlers.add(handler);
+    }
+
+    public void addSubmitHandler(Runnable handler) {
+        this.submitHandlers.add(handler);
     }
 
     public void init() {
         this.frames = new ObjectArrayList<>();
-        this.framesInFlight = new ObjectArrayList<>();
 
         for (int i = 0; i < MAX_FRAMES_IN_FLIGHT; ++i) {
             this.frames.add(new Frame(
                     this.timings.createTiming(BlockingTimer.Type.SEMAPHORE),
                     this.timings.createTiming(BlockingTimer.Type.SEMAPHORE),
                     this.timings.createTiming(BlockingTimer.Type.FENCE),
-                    this.commandPool
+                    new CommandPool(this.device, this.swapChain, this.physicalDevice, this.surface, this.preference,
+                            QueueFamily.GRAPHICS, VK10.VK_COMMAND_POOL_CREATE_TRANSIENT_BIT)
             ));
         }
 
-        for (int i = 0; i < this.swapChain.images.size(); ++i) {
-            this.framesInFlight.add(null);
-        }
-
-        this.currentFrame = 0;
+        this.pacer = new FramePacer(this.device, this.frames);
+        this.latency = new LatencyPacer(this.device, this.physicalDevice, this.queues);
+        this.currentFrame = this.pacer.getFrameInFlight(this.pacer.getNextFrame());
     }
 
-    public void freeBuffers() {
+    public void destroy() {
         for (Frame frame : this.frames) {
-            this.commandPool.freeBuffer(frame.commandBuffer);
+            // destroying the pool frees the command buffer
+            frame.commandPool.destroy();
             frame.commandBuffer = null;
         }
+        this.latency.destroy();
+    }
+
+    /**
+     * Sleeps until the next frame should start when low latency pacing is enabled. The game loop should call this
+     * right before it samples input, otherwise {@link #drawFrame()} calls it.
+     * @return true if it slept, in which case input should be polled again
+     */
+    public boolean sleepUntilFrameStart() {
+        return this.latency.sleep();
     }
 
     public void drawFrame() {
         try (MemoryStack stack = MemoryStack.stackPush()) {
+            this.latency.sleep();
             Frame frame = this.frames.get(this.currentFrame);
-            VK10.vkWaitForFences(this.device.device, frame.fence.handle, true, MathUtils.UINT64_MAX);
+            long waitStart = System.nanoTime();
+            this.pacer.waitForNextFrame();
+            this.latency.addBlocked(System.nanoTime() - waitStart);
+            this.latency.readGpuTime(this.currentFrame);
+            // nothing recorded from the pool is executing anymore, so it is reset at once instead of buffer by buffer
+            frame.commandPool.reset();
+            for (FrameHandler handler : this.frameHandlers) {
+                handler.beginFrame(this.currentFrame);
+            }
 
             IntBuffer pImageIndex = stack.mallocInt(1);
+            // acquiring blocks while the presentation engine holds every image, which is how present timing is felt
+            waitStart = System.nanoTime();
             int result = KHRSwapchain.vkAcquireNextImageKHR(this.device.device, this.swapChain.swapChain, MathUtils.UINT64_MAX,
                     frame.imageAvailable.handle, VK10.VK_NULL_HANDLE, pImageIndex);
+            this.latency.addBlocked(System.nanoTime() - waitStart);
             if (result == KHRSwapchain.VK_ERROR_OUT_OF_DATE_KHR) {
                 this.swapChainManager.recreate();
+                this.latency.endFrame();
                 return;
             } else if (result != VK10.VK_SUCCESS && result != KHRSwapchain.VK_SUBOPTIMAL_KHR) {
                 throw new RuntimeException("Failed to acquire swap chain image!");
@@ -87,25 +134,15 @@ public final class FrameSynchronizer {
             int imageIndex = pImageIndex.get(0);
 
             if (this.bufferRecorder != null) {
-                if (PulsarSettings.RESET_COMMAND_BUFFERS) {
-                    if (frame.commandBuffer == null) {
-                        frame.commandBuffer = this.commandPool.allocateBuffer();
-                    } else {
-                        frame.commandBuffer.reset();
-                    }
-                } else {
-                    if (frame.commandBuffer != null) {
-                        this.commandPool.freeBuffer(frame.commandBuffer);
-                    }
-                    frame.commandBuffer = this.commandPool.allocateBuffer();
+                if (frame.commandBuffer == null) {
+                    frame.commandBuffer = frame.commandPool.allocateBuffer();
                 }
                 this.bufferRecorder.record(frame.commandBuffer, imageIndex, this.currentFrame);
             }
 
-            if (this.framesInFlight.get(imageIndex) != null) {
-                VK10.vkWaitForFences(this.device.device, this.framesInFlight.get(imageIndex).fence.handle, true, MathUtils.UINT64_MAX);
-            }
-            this.framesInFlight.set(imageIndex, frame);
+            waitStart = System.nanoTime();
+            this.pacer.waitForImage(imageIndex, this.swapChain.images.size());
+            this.latency.addBlocked(System.nanoTime() - waitStart);
 
             LongBuffer waitSemaphores = frame.pImageAvailableSemaphore();
             LongBuffer signalSemaphores = frame.pRenderFinishedSemaphore();
@@ -120,9 +157,13 @@ public final class FrameSynchronizer {
 
             VK10.vkResetFences(this.device.device, frame.fence.handle);
 
+            for (Runnable handler : this.submitHandlers) {
+                handler.run();
+            }
             if (VK10.vkQueueSubmit(this.queues.getQueue(QueueFamily.GRAPHICS), submitInfo, frame.fence.handle) != VK10.VK_SUCCESS) {
                 throw new RuntimeException("Failed to submit draw command buffer!");
             }
+            this.pacer.submitted();
 
             VkPresentInfoKHR presentInfo = VkPresentInfoKHR.callocStack(stack);
             presentInfo.sType(KHRSwapchain.VK_STRUCTURE_TYPE_PRESENT_INFO_KHR);
@@ -139,11 +180,13 @@ public final class FrameSynchronizer {
                 throw new RuntimeException("Failed to present swap chain image!");
             }
 
-            this.currentFrame = (this.currentFrame + 1) % MAX_FRAMES_IN_FLIGHT;
+            this.currentFrame = this.pacer.getFrameInFlight(this.pacer.getNextFrame());
+            this.latency.endFrame();
         }
     }
 
     public void endLoop() {
         this.device.waitIdle();
+        this.pacer.idle();
     }
 }
@@ -0,0 +1,202 @@
+package io.github.lunbun.pulsar.component.drawing;
+
+import io.github.lunbun.pulsar.component.setup.LogicalDevice;
+import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
+import io.github.lunbun.pulsar.component.setup.QueueManager;
+import io.github.lunbun.pulsar.struct.setup.QueueFamily;
+import io.github.lunbun.pulsar.util.PulsarSettings;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VK10;
+import org.lwjgl.vulkan.VkQueryPoolCreateInfo;
+import org.lwjgl.vulkan.VkQueueFamilyProperties;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delays the start of each frame so that input is sampled and the frame is recorded as late as possible, instead of
+ * recording right away and then waiting for the GPU or the presentation engine.
+ * The time the render thread spends blocked on fences and image acquisition after the frame has started is measured
+ * every frame. It is time that the frame could have started later, so the delay before the next frame grows while the
+ * render thread blocks for longer than the target latency, and shrinks when it blocks for less. The delay never leaves
+ * less than the CPU and GPU time of a frame before the next frame is due, so that the frame is still done in time. GPU
+ * frame times are measured with timestamp queries where the graphics queue supports them.
+ */
+public final class LatencyPacer {
+    // how much of the difference between the blocked time and the target is added to the delay each frame
+    private static final double GAIN = 0.25;
+    // weight of the newest measurement in the moving averages
+    private static final double SMOOTHING = 0.1;
+    // blocking for less than this means the frame probably started too late
+    private static final long MISS_THRESHOLD = 50000;
+
+    private final LogicalDevice device;
+    public boolean enabled;
+    // nanoseconds that the render thread may still block after a frame starts, which is slack against missed frames
+    public long targetLatency;
+
+    // VK_NULL_HANDLE if the graphics queue doesn't support timestamps
+    private final long queryPool;
+    private final long timestampMask;
+    private final double timestampPeriod;
+    // if the queries of each frame in flight have been written since they were last read
+    private final boolean[] pendingQueries;
+
+    private long delay;
+    private long frameStart;
+    private long lastFrameStart;
+    private long blocked;
+    private double gpuTime;
+    private double cpuTime;
+    private double frameInterval;
+
+    public LatencyPacer(LogicalDevice device, PhysicalDevice physicalDevice, QueueManager queues) {
+        this.device = device;
+        this.enabled = PulsarSettings.LOW_LATENCY;
+        this.targetLatency = PulsarSettings.TARGET_LATENCY;
+        this.pendingQueries = new boolean[FrameSynchronizer.MAX_FRAMES_IN_FLIGHT];
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            int family = queues.getFamilyIndex(QueueFamily.GRAPHICS);
+            IntBuffer pCount = stack.ints(0);
+            VK10.vkGetPhysicalDeviceQueueFamilyProperties(physicalDevice.device, pCount, null);
+            VkQueueFamilyProperties.Buffer families = VkQueueFamilyProperties.mallocStack(pCount.get(0), stack);
+            VK10.vkGetPhysicalDeviceQueueFamilyProperties(physicalDevice.device, pCount, families);
+            int validBits = families.get(family).timestampValidBits();
+
+            this.timestampPeriod = physicalDevice.getLimits(stack).timestampPeriod();
+            this.timestampMask = validBits >= Long.SIZE ? -1L : (1L << validBits) - 1;
+            if (validBits == 0) {
+                this.queryPool = VK10.VK_NULL_HANDLE;
+                return;
+            }
+
+            VkQueryPoolCreateInfo poolInfo = VkQueryPoolCreateInfo.callocStack(stack);
+            poolInfo.sType(VK10.VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO);
+            poolInfo.queryType(VK10.VK_QUERY_TYPE_TIMESTAMP);
+            poolInfo.queryCount(2 * FrameSynchronizer.MAX_FRAMES_IN_FLIGHT);
+
+            LongBuffer pQueryPool = stack.mallocLong(1);
+            if (VK10.vkCreateQueryPool(device.device, poolInfo, null, pQueryPool) != VK10.VK_SUCCESS) {
+                throw new RuntimeException("Failed to create query pool!");
+            }
+            this.queryPool = pQueryPool.get(0);
+        }
+    }
+
+    /**
+     * Sleeps until the next frame should start. Call it before sampling input, otherwise the frame sleeps once it is
+     * drawn, which only delays recording.
+     * @return true if it slept, false if the frame had already started or doesn't have to be delayed
+     */
+    public boolean sleep() {
+        if (this.frameStart != 0) {
+            return false;
+        }
+
+        boolean slept = this.enabled && this.delay > 0;
+        if (slept) {
+            long wakeUp = System.nanoTime() + this.delay;
+            long remaining;
+            while ((remaining = wakeUp - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+        this.frameStart = System.nanoTime();
+        this.blocked = 0;
+        return slept;
+    }
+
+    /**
+     * Adds time the render thread spent waiting on the GPU or the presentation engine during the frame
+     */
+    public void addBlocked(long nanoseconds) {
+        this.blocked += nanoseconds;
+    }
+
+    /**
+     * Reads the GPU time of the last frame recorded by a frame in flight, once its fence has signalled
+     */
+    public void readGpuTime(int currentFrame) {
+        if (this.queryPool == VK10.VK_NULL_HANDLE || !this.pendingQueries[currentFrame]) {
+            return;
+        }
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            LongBuffer pTimestamps = stack.mallocLong(2);
+            if (VK10.vkGetQueryPoolResults(this.device.device, this.queryPool, 2 * currentFrame, 2, pTimestamps,
+                    Long.BYTES, VK10.VK_QUERY_RESULT_64_BIT) == VK10.VK_SUCCESS) {
+                long ticks = (pTimestamps.get(1) - pTimestamps.get(0)) & this.timestampMask;
+                this.gpuTime = average(this.gpuTime, ticks * this.timestampPeriod);
+            }
+        }
+        this.pendingQueries[currentFrame] = false;
+    }
+
+    public void writeStart(CommandBuffer commandBuffer, int currentFrame) {
+        if (this.queryPool == VK10.VK_NULL_HANDLE) {
+            return;
+        }
+        commandBuffer.resetQueryPool(this.queryPool, 2 * currentFrame, 2);
+        commandBuffer.writeTimestamp(VK10.VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, this.queryPool, 2 * currentFrame);
+    }
+
+    public void writeEnd(CommandBuffer commandBuffer, int currentFrame) {
+        if (this.queryPool == VK10.VK_NULL_HANDLE) {
+            return;
+        }
+        commandBuffer.writeTimestamp(VK10.VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, this.queryPool,
+                2 * currentFrame + 1);
+        this.pendingQueries[currentFrame] = true;
+    }
+
+    /**
+     * Called once the frame has been submitted and presented, to adjust the delay of the next frame
+     */
+    public void endFrame() {
+        long now = System.nanoTime();
+        this.cpuTime = average(this.cpuTime, now - this.frameStart - this.blocked);
+        if (this.lastFrameStart != 0) {
+            this.frameInterval = average(this.frameInterval, this.frameStart - this.lastFrameStart);
+        }
+        this.lastFrameStart = this.frameStart;
+        this.frameStart = 0;
+
+        if (!this.enabled) {
+            this.delay = 0;
+        } else if (this.blocked < MISS_THRESHOLD) {
+            // the frame didn't have to wait at all, so it may have started after the GPU needed it
+            this.delay /= 2;
+        } else {
+            this.delay += (long) (GAIN * (this.blocked - this.targetLatency));
+            // once the frame starts, it still has to be recorded and then rendered before the next one is due, so
+            // sleeping for longer only lowers the frame rate
+            this.delay = Math.max(0, Math.min(this.delay, (long) (this.frameInterval - this.cpuTime - this.gpuTime)));
+        }
+    }
+
+    private static double average(double average, double value) {
+        return average == 0 ? value : average + SMOOTHING * (value - average);
+    }
+
+    // the moving average of nanoseconds the GPU spends on a frame, or 0 if timestamps aren't supported
+    public double getGpuTime() {
+        return this.gpuTime;
+    }
+
+    // the moving average of nanoseconds the render thread spends on a frame, without sleeping and blocking
+    public double getCpuTime() {
+        return this.cpuTime;
+    }
+
+    public long getDelay() {
+        return this.delay;
+    }
+
+    public void destroy() {
+        if (this.queryPool != VK10.VK_NULL_HANDLE) {
+            VK10.vkDestroyQueryPool(this.device.device, this.queryPool, null);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package io.github.lunbun.pulsar.component.drawing;
+
+import io.github.lunbun.pulsar.component.presentation.SwapChain;
+import io.github.lunbun.pulsar.component.presentation.WindowSurface;
+import io.github.lunbun.pulsar.component.setup.LogicalDevice;
+import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
+import io.github.lunbun.pulsar.struct.setup.GraphicsCardPreference;
+import io.github.lunbun.pulsar.struct.setup.QueueFamily;
+import io.github.lunbun.pulsar.util.misc.RenderPassRecorder;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import org.lwjgl.vulkan.VK10;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records render passes into secondary command buffers on a pool of worker threads, and executes them from the primary
+ * command buffer in the order of their recorders.
+ * Command pools can only be used by one thread at a time, so every thread that records has its own pool for each frame
+ * in flight. A pool is reset the first time its thread records for a frame, once the fence of the frame has signalled.
+ * Cached recorders keep a secondary buffer for every swap chain image and frame in flight instead, which is only recorded
+ * again once the recorder is dirty.
+ */
+public final class ParallelRecorder {
+    private final LogicalDevice device;
+    private final SwapChain swapChain;
+    private final PhysicalDevice physicalDevice;
+    private final WindowSurface surface;
+    private final GraphicsCardPreference preference;
+
+    private final ExecutorService executor;
+    private final ThreadLocal<Worker> workers;
+    // every worker that has been created, so their pools can be destroyed, guarded by its own lock
+    private final List<Worker> allWorkers;
+    private final List<Future<?>> futures;
+    private long frameNumber;
+    // only touched by the render thread, the workers are handed the cache of their recorder
+    private final Reference2ObjectMap<RenderPassRecorder, Cache> caches;
+
+    public ParallelRecorder(LogicalDevice device, SwapChain swapChain, PhysicalDevice physicalDevice,
+                            WindowSurface surface, GraphicsCardPreference preference, int threadCount) {
+        this.device = device;
+        this.swapChain = swapChain;
+        this.physicalDevice = physicalDevice;
+        this.surface = surface;
+        this.preference = preference;
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "Pulsar Recorder #" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.allWorkers = new ObjectArrayList<>();
+        this.workers = ThreadLocal.withInitial(() -> {
+            Worker worker = new Worker();
+            synchronized (this.allWorkers) {
+                this.allWorkers.add(worker);
+            }
+            return worker;
+        });
+        this.futures = new ObjectArrayList<>();
+        this.frameNumber = 0;
+        this.caches = new Reference2ObjectOpenHashMap<>();
+    }
+
+    private CommandBuffer recordSecondary(RenderPassRecorder recorder, Cache cache, int index, int currentFrame,
+                                          long frameNumber) {
+        recorder.update(index, currentFrame);
+        if (cache != null) {
+            return cache.getBuffer(recorder, index, currentFrame);
+        }
+
+        CommandBuffer buffer = this.workers.get().nextBuffer(currentFrame, frameNumber);
+        buffer.startRecordingSecondary(recorder.getRenderPass(), recorder.getFramebuffer(index), true);
+        recorder.record(buffer, index, currentFrame);
+        buffer.endRecording();
+        return buffer;
+    }
+
+    private Cache getCache(RenderPassRecorder recorder) {
+        if (!recorder.isCached()) {
+            return null;
+        }
+
+        // a new cache records everything anyway, but the recorder still has to know that it was asked
+        boolean dirty = recorder.isDirty();
+        Cache cache = this.caches.get(recorder);
+        if (cache == null) {
+            cache = new Cache();
+            this.caches.put(recorder, cache);
+        } else if (dirty) {
+            ++cache.version;
+        }
+        return cache;
+    }
+
+    /**
+     * Records every render pass in parallel, and then executes them from a primary command buffer.
+     * @param primary the command buffer to begin the render passes in, which has to be outside of a render pass
+     */
+    public void record(CommandBuffer primary, List<RenderPassRecorder> recorders, int index, int currentFrame) {
+        long frameNumber = ++this.frameNumber;
+        int count = recorders.size();
+        CommandBuffer[] buffers = new CommandBuffer[count];
+        Cache[] caches = new Cache[count];
+        for (int i = 0; i < count; ++i) {
+            caches[i] = this.getCache(recorders.get(i));
+        }
+
+        for (int i = 1; i < count; ++i) {
+            int task = i;
+            this.futures.add(this.executor.submit(() -> {
+                buffers[task] = this.recordSecondary(recorders.get(task), caches[task], index, currentFrame,
+                        frameNumber);
+            }));
+        }
+        // the render thread records the first render pass itself instead of waiting
+        if (count > 0) {
+            buffers[0] = this.recordSecondary(recorders.get(0), caches[0], index, currentFrame, frameNumber);
+        }
+
+        try {
+            for (Future<?> future : this.futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Failed to record command buffer!", e);
+        } finally {
+            this.futures.clear();
+        }
+
+        for (int i = 0; i < count; ++i) {
+            RenderPassRecorder recorder = recorders.get(i);
+            primary.startRenderPass(recorder.getRenderPass(), recorder.getFramebuffer(index), true);
+            primary.executeCommands(buffers[i]);
+            primary.endRenderPass();
+        }
+    }
+
+    /**
+     * Destroys every cached command buffer, so that they are recorded again. Cached buffers reference the framebuffers
+     * and pipelines of the swap chain, so they have to be invalidated when it is recreated.
+     */
+    public void invalidateCaches() {
+        for (Cache cache : this.caches.values()) {
+            cache.pool.destroy();
+        }
+        this.caches.clear();
+    }
+
+    public void destroy() {
+        this.invalidateCaches();
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this.allWorkers) {
+            for (Worker worker : this.allWorkers) {
+                worker.destroy();
+            }
+            this.allWorkers.clear();
+        }
+    }
+
+    private final class Cache {
+        // buffers are reset individually when they are recorded again
+        private final CommandPool pool;
+        private final CommandBuffer[] buffers;
+        // the version of the recorder that each buffer was recorded with
+        private final long[] versions;
+        private long version;
+
+        public Cache() {
+            this.pool = new CommandPool(device, swapChain, physicalDevice, surface, preference, QueueFamily.GRAPHICS,
+                    VK10.VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT);
+            this.buffers = new CommandBuffer[swapChain.images.size() * FrameSynchronizer.MAX_FRAMES_IN_FLIGHT];
+            this.versions = new long[this.buffers.length];
+            this.version = 0;
+        }
+
+        /**
+         * Gets the buffer of an image and frame in flight, recording it again if the recorder has changed since. The
+         * buffer was last executed by the same frame in flight, so it isn't pending anymore once the fence has signalled.
+         */
+        public CommandBuffer getBuffer(RenderPassRecorder recorder, int index, int currentFrame) {
+            int slot = index * FrameSynchronizer.MAX_FRAMES_IN_FLIGHT + currentFrame;
+            CommandBuffer buffer = this.buffers[slot];
+            if (buffer != null && this.versions[slot] == this.version) {
+                return buffer;
+            }
+
+            if (buffer == null) {
+                buffer = this.pool.allocateSecondaryBuffer();
+                this.buffers[slot] = buffer;
+            }
+            buffer.startRecordingSecondary(recorder.getRenderPass(), recorder.getFramebuffer(index), false);
+            recorder.record(buffer, index, currentFrame);
+            buffer.endRecording();
+            this.versions[slot] = this.version;
+            return buffer;
+        }
+    }
+
+    private final class Worker {
+        private final CommandPool[] pools;
+        // secondary buffers allocated from each pool, which are reused once their pool has been reset
+        private final List<List<CommandBuffer>> buffers;
+        private final int[] usedBuffers;
+        // the frame that each pool was last reset for
+        private final long[] frameNumbers;
+
+        public Worker() {
+            this.pools = new CommandPool[FrameSynchronizer.MAX_FRAMES_IN_FLIGHT];
+            this.buffers = new ObjectArrayList<>();
+            for (int i = 0; i < this.pools.length; ++i) {
+                this.pools[i] = new CommandPool(device, swapChain, physicalDevice, surface, preference,
+                        QueueFamily.GRAPHICS, VK10.VK_COMMAND_POOL_CREATE_TRANSIENT_BIT);
+                this.buffers.add(new ObjectArrayList<>());
+            }
+            this.usedBuffers = new int[this.pools.length];
+            this.frameNumbers = new long[this.pools.length];
+        }
+
+        public CommandBuffer nextBuffer(int currentFrame, long frameNumber) {
+            if (this.frameNumbers[currentFrame] != frameNumber) {
+                this.pools[currentFrame].reset();
+                this.usedBuffers[currentFrame] = 0;
+                this.frameNumbers[currentFrame] = frameNumber;
+            }
+
+            List<CommandBuffer> buffers = this.buffers.get(currentFrame);
+            if (this.usedBuffers[currentFrame] == buffers.size()) {
+                buffers.add(this.pools[currentFrame].allocateSecondaryBuffer());
+            }
+            return buffers.get(this.usedBuffers[currentFrame]++);
+        }
+
+        public void destroy() {
+            for (int i = 0; i < this.pools.length; ++i) {
+                // destroying a pool frees its buffers
+                this.pools[i].destroy();
+                this.buffers.get(i).clear();
+            }
+        }
+    }
+}
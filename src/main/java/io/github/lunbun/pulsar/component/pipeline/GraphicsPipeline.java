@@ -5,6 +5,7 @@ import io.github.lunbun.pulsar.component.setup.LogicalDevice;
 import io.github.lunbun.pulsar.component.uniform.DescriptorSetLayout;
 import io.github.lunbun.pulsar.component.vertex.Vertex;
 import io.github.lunbun.pulsar.struct.pipeline.Blend;
+import io.github.lunbun.pulsar.struct.pipeline.PipelineState;
 import io.github.lunbun.pulsar.struct.pipeline.ShaderModule;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.lwjgl.system.MemoryStack;
@@ -40,10 +41,21 @@ public final class GraphicsPipeline {
 
         // TODO: multiple render passes
         public GraphicsPipeline createPipeline(Shader shader, Blend blendFunc, RenderPass renderPass, DescriptorSetLayout[] descriptorSetLayouts, Vertex.Builder vertexBuilder) {
+            return this.createPipeline(shader, new PipelineState(blendFunc), renderPass, descriptorSetLayouts, vertexBuilder);
+        }
+
+        public GraphicsPipeline createPipeline(Shader shader, PipelineState state, RenderPass renderPass, DescriptorSetLayout descriptorSetLayout, Vertex.Builder vertexBuilder) {
+            return this.createPipeline(shader, state, renderPass, new DescriptorSetLayout[] { descriptorSetLayout }, vertexBuilder);
+        }
+
+        public GraphicsPipeline createPipeline(Shader shader, PipelineState state, RenderPass renderPass, DescriptorSetLayout[] descriptorSetLayouts, Vertex.Builder vertexBuilder) {
             GraphicsPipeline pipeline = new GraphicsPipeline(renderPass);
-            this.createVkPipeline(pipeline, shader, blendFunc, renderPass, descriptorSetLayouts, vertexBuilder);
+            this.createVkPipeline(pipeline, shader, state, renderPass, descriptorSetLayouts, vertexBuilder);
 
-            this.pipelinePool.add(pipeline);
+            // pipelines can be created while render passes are recorded in parallel
+            synchronized (this.pipelinePool) {
+                this.pipelinePool.add(pipeline);
+            }
             return pipeline;
         }
 
@@ -63,7 +75,7 @@ public final class GraphicsPipeline {
             VK10.vkDestroyPipelineLayout(this.device.device, pipeline.pipelineLayout, null);
         }
 
-        private void createVkPipeline(GraphicsPipeline pipeline, Shader shader, Blend blend, RenderPass renderPass, DescriptorSetLayout[] descriptorSetLayouts, Vertex.Builder vertexBuilder) {
+        private void createVkPipeline(GraphicsPipeline pipeline, Shader shader, PipelineState state, RenderPass renderPass, DescriptorSetLayout[] descriptorSetLayouts, Vertex.Builder vertexBuilder) {
             try (MemoryStack stack = MemoryStack.stackPush()) {
                 VkPipelineShaderStageCreateInfo.Buffer shaderStageInfos = VkPipelineShaderStageCreateInfo.callocStack(2, stack);
 
@@ -82,7 +94,7 @@ public final class GraphicsPipeline {
 
                 VkPipelineInputAssemblyStateCreateInfo inputAssembly = VkPipelineInputAssemblyStateCreateInfo.callocStack(stack);
                 inputAssembly.sType(VK10.VK_STRUCTURE_TYPE_PIPELINE_INPUT_ASSEMBLY_STATE_CREATE_INFO);
-                inputAssembly.topology(VK10.VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST);
+                inputAssembly.topology(state.topology.vk);
                 inputAssembly.primitiveRestartEnable(false);
 
                 VkViewport.Buffer viewport = VkViewport.callocStack(1, stack);
@@ -108,7 +120,7 @@ public final class GraphicsPipeline {
                 rasterizer.rasterizerDiscardEnable(false);
                 rasterizer.polygonMode(VK10.VK_POLYGON_MODE_FILL);
                 rasterizer.lineWidth(1);
-                rasterizer.cullMode(VK10.VK_CULL_MODE_NONE);
+                rasterizer.cullMode(state.cullBackFaces ? VK10.VK_CULL_MODE_BACK_BIT : VK10.VK_CULL_MODE_NONE);
                 rasterizer.frontFace(VK10.VK_FRONT_FACE_CLOCKWISE);
                 rasterizer.depthBiasEnable(false);
 
@@ -120,6 +132,7 @@ public final class GraphicsPipeline {
                 VkPipelineColorBlendAttachmentState.Buffer colorBlendAttachment = VkPipelineColorBlendAttachmentState.callocStack(1, stack);
                 colorBlendAttachment.colorWriteMask(VK10.VK_COLOR_COMPONENT_R_BIT | VK10.VK_COLOR_COMPONENT_G_BIT |
                         VK10.VK_COLOR_COMPONENT_B_BIT | VK10.VK_COLOR_COMPONENT_A_BIT);
+                Blend blend = state.blend;
                 if (blend == null) {
                     colorBlendAttachment.blendEnable(false);
                 } else {
@@ -132,6 +145,14 @@ public final class GraphicsPipeline {
                     colorBlendAttachment.alphaBlendOp(blend.alphaBlendOp.vk);
                 }
 
+                VkPipelineDepthStencilStateCreateInfo depthStencil = VkPipelineDepthStencilStateCreateInfo.callocStack(stack);
+                depthStencil.sType(VK10.VK_STRUCTURE_TYPE_PIPELINE_DEPTH_STENCIL_STATE_CREATE_INFO);
+                depthStencil.depthTestEnable(state.depthTest);
+                depthStencil.depthWriteEnable(state.depthWrite);
+                depthStencil.depthCompareOp(state.depthCompareOp.vk);
+                depthStencil.depthBoundsTestEnable(false);
+                depthStencil.stencilTestEnable(false);
+
                 VkPipelineColorBlendStateCreateInfo colorBlending = VkPipelineColorBlendStateCreateInfo.callocStack(stack);
                 colorBlending.sType(VK10.VK_STRUCTURE_TYPE_PIPELINE_COLOR_BLEND_STATE_CREATE_INFO);
                 colorBlending.logicOpEnable(false);
@@ -172,6 +193,7 @@ public final class GraphicsPipeline {
                 pipelineInfo.pViewportState(viewportState);
                 pipelineInfo.pRasterizationState(rasterizer);
                 pipelineInfo.pMultisampleState(multisampling);
+                pipelineInfo.pDepthStencilState(depthStencil);
                 pipelineInfo.pColorBlendState(colorBlending);
                 pipelineInfo.layout(pPipelineLayout.get(0));
                 pipelineInfo.renderPass(renderPass.renderPass);
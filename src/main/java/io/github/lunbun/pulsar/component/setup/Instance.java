@@ -6,6 +6,11 @@ import org.lwjgl.glfw.GLFWVulkan;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
+import java.nio.IntBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 public final class Instance {
     public final VkInstance instance;
 
@@ -18,23 +23,39 @@ public final class Instance {
     }
 
     public static final class Builder {
+        private static Set<String> queryAvailableExtensions() {
+            try (MemoryStack stack = MemoryStack.stackPush()) {
+                IntBuffer extensionCount = stack.ints(0);
+                VK10.vkEnumerateInstanceExtensionProperties((String) null, extensionCount, null);
+
+                VkExtensionProperties.Buffer availableExtensions = VkExtensionProperties.mallocStack(extensionCount.get(0), stack);
+                VK10.vkEnumerateInstanceExtensionProperties((String) null, extensionCount, availableExtensions);
+
+                return availableExtensions.stream()
+                        .map(VkExtensionProperties::extensionNameString)
+                        .collect(Collectors.toSet());
+            }
+        }
+
         private static PointerBuffer getRequiredExtensions() {
             PointerBuffer glfwExtensions = GLFWVulkan.glfwGetRequiredInstanceExtensions();
 
-            if (ValidationLayerUtils.ENABLE_VALIDATION_LAYERS) {
-                MemoryStack stack = MemoryStack.stackGet();
-
-                //noinspection ConstantConditions
-                PointerBuffer extensions = stack.mallocPointer(glfwExtensions.capacity() + 1);
+            Set<String> extensions = new HashSet<>();
+            //noinspection ConstantConditions
+            for (int i = 0; i < glfwExtensions.capacity(); ++i) {
+                extensions.add(glfwExtensions.getStringUTF8(i));
+            }
 
-                extensions.put(glfwExtensions);
-                extensions.put(stack.UTF8(EXTDebugUtils.VK_EXT_DEBUG_UTILS_EXTENSION_NAME));
+            if (ValidationLayerUtils.ENABLE_VALIDATION_LAYERS) {
+                extensions.add(EXTDebugUtils.VK_EXT_DEBUG_UTILS_EXTENSION_NAME);
+            }
 
-                // Rewind the buffer before returning it to reset its position back to 0
-                return extensions.rewind();
+            // optional, the instance is Vulkan 1.0 so querying extended device properties (like memory budgets) needs it
+            if (queryAvailableExtensions().contains(KHRGetPhysicalDeviceProperties2.VK_KHR_GET_PHYSICAL_DEVICE_PROPERTIES_2_EXTENSION_NAME)) {
+                extensions.add(KHRGetPhysicalDeviceProperties2.VK_KHR_GET_PHYSICAL_DEVICE_PROPERTIES_2_EXTENSION_NAME);
             }
 
-            return glfwExtensions;
+            return PointerUtils.asPointerBuffer(extensions);
         }
 
         public static Instance createInstance(String applicationName) {
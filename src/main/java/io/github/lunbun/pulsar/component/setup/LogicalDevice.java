@@ -1,6 +1,7 @@
 package io.github.lunbun.pulsar.component.setup;
 
 import io.github.lunbun.pulsar.component.presentation.WindowSurface;
+import io.github.lunbun.pulsar.struct.setup.DeviceExtension;
 import io.github.lunbun.pulsar.struct.setup.GraphicsCardPreference;
 import io.github.lunbun.pulsar.util.misc.PointerUtils;
 import io.github.lunbun.pulsar.util.vulkan.DeviceUtils;
@@ -9,13 +10,22 @@ import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
+import java.util.EnumSet;
 import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 public final class LogicalDevice {
     public final VkDevice device;
+    public final Set<DeviceExtension> enabledExtensions;
 
-    protected LogicalDevice(VkDevice device) {
+    protected LogicalDevice(VkDevice device, Set<DeviceExtension> enabledExtensions) {
         this.device = device;
+        this.enabledExtensions = enabledExtensions;
+    }
+
+    public boolean hasExtension(DeviceExtension extension) {
+        return this.enabledExtensions.contains(extension);
     }
 
     public void destroy() {
@@ -52,7 +62,16 @@ public final class LogicalDevice {
 
                 createInfo.pQueueCreateInfos(queueCreateInfos);
                 createInfo.pEnabledFeatures(deviceFeatures);
-                createInfo.ppEnabledExtensionNames(PointerUtils.asPointerBuffer(preference.extensionsSet));
+                Set<DeviceExtension> enabledExtensions = EnumSet.noneOf(DeviceExtension.class);
+                enabledExtensions.addAll(preference.extensions);
+                for (DeviceExtension extension : preference.optionalExtensions) {
+                    if (physicalDevice.supportsExtension(extension)) {
+                        enabledExtensions.add(extension);
+                    }
+                }
+                createInfo.ppEnabledExtensionNames(PointerUtils.asPointerBuffer(enabledExtensions.stream()
+                        .map(extension -> extension.name)
+                        .collect(Collectors.toSet())));
 
                 if (ValidationLayerUtils.ENABLE_VALIDATION_LAYERS) {
                     createInfo.ppEnabledLayerNames(PointerUtils.asPointerBuffer(
@@ -69,7 +88,7 @@ public final class LogicalDevice {
 
                 queues.populate(indices, device);
 
-                return new LogicalDevice(device);
+                return new LogicalDevice(device, enabledExtensions);
             }
         }
     }
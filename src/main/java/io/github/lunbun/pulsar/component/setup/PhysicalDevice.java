@@ -2,6 +2,7 @@ package io.github.lunbun.pulsar.component.setup;
 
 import io.github.lunbun.pulsar.component.presentation.SwapChain;
 import io.github.lunbun.pulsar.component.presentation.WindowSurface;
+import io.github.lunbun.pulsar.struct.setup.DeviceExtension;
 import io.github.lunbun.pulsar.struct.setup.DeviceType;
 import io.github.lunbun.pulsar.struct.setup.GraphicsCardPreference;
 import io.github.lunbun.pulsar.util.vulkan.DeviceUtils;
@@ -12,6 +13,7 @@ import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
 import java.nio.IntBuffer;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -23,11 +25,17 @@ public final class PhysicalDevice {
     public final VkPhysicalDevice device;
     public final String name;
     public final String vendor;
+    public final Set<String> availableExtensions;
 
-    protected PhysicalDevice(VkPhysicalDevice device, String name, String vendor) {
+    protected PhysicalDevice(VkPhysicalDevice device, String name, String vendor, Set<String> availableExtensions) {
         this.device = device;
         this.name = name;
         this.vendor = vendor;
+        this.availableExtensions = availableExtensions;
+    }
+
+    public boolean supportsExtension(DeviceExtension extension) {
+        return this.availableExtensions.contains(extension.name);
     }
 
     public VkPhysicalDeviceLimits getLimits(MemoryStack stack) {
@@ -67,7 +75,7 @@ public final class PhysicalDevice {
                 String name = properties.deviceNameString();
                 String vendor = Vendors.getVendorName(properties.vendorID());
 
-                return new PhysicalDevice(physicalDevice, name, vendor);
+                return new PhysicalDevice(physicalDevice, name, vendor, queryAvailableExtensions(physicalDevice));
             }
         }
 
@@ -83,7 +91,7 @@ public final class PhysicalDevice {
             return features;
         }
 
-        private static boolean checkDeviceExtensionSupport(VkPhysicalDevice device, GraphicsCardPreference preference) {
+        private static Set<String> queryAvailableExtensions(VkPhysicalDevice device) {
             try (MemoryStack stack = MemoryStack.stackPush()) {
                 IntBuffer extensionCount = stack.ints(0);
                 VK10.vkEnumerateDeviceExtensionProperties(device, (String) null, extensionCount, null);
@@ -93,11 +101,14 @@ public final class PhysicalDevice {
 
                 return availableExtensions.stream()
                         .map(VkExtensionProperties::extensionNameString)
-                        .collect(Collectors.toSet())
-                        .containsAll(preference.extensionsSet);
+                        .collect(Collectors.toSet());
             }
         }
 
+        private static boolean checkDeviceExtensionSupport(VkPhysicalDevice device, GraphicsCardPreference preference) {
+            return queryAvailableExtensions(device).containsAll(preference.extensionsSet);
+        }
+
         private static int scoreDevice(VkPhysicalDevice device, WindowSurface surface, GraphicsCardPreference preference) {
             try (MemoryStack stack = MemoryStack.stackPush()) {
                 QueueFamilyIndices indices = DeviceUtils.findQueueFamilies(device, surface.surface, preference);
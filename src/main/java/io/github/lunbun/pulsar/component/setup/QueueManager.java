@@ -2,6 +2,7 @@ package io.github.lunbun.pulsar.component.setup;
 
 import io.github.lunbun.pulsar.struct.setup.QueueFamily;
 import io.github.lunbun.pulsar.util.vulkan.QueueFamilyIndices;
+import it.unimi.dsi.fastutil.objects.Object2IntArrayMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
@@ -17,9 +18,11 @@ import java.util.Set;
  */
 public final class QueueManager {
     private final Map<QueueFamily, VkQueue> queues;
+    private final Map<QueueFamily, Integer> familyIndices;
 
     public QueueManager() {
         this.queues = new Object2ObjectOpenHashMap<>();
+        this.familyIndices = new Object2IntArrayMap<>();
     }
 
     /**
@@ -34,6 +37,7 @@ public final class QueueManager {
             for (QueueFamily family : QueueFamily.VALUES) {
                 if (indices.hasFamily(family)) {
                     this.queues.put(family, indices.getQueueFamily(device, family, pQueue));
+                    this.familyIndices.put(family, indices.getFamilyIndex(family));
                 }
             }
         }
@@ -48,6 +52,15 @@ public final class QueueManager {
         return this.queues.get(family);
     }
 
+    /**
+     * Gets the index of the Vulkan queue family that a queue is from, which is needed for ownership transfers
+     * @param family the queue family to get
+     * @return the index of the queue family
+     */
+    public int getFamilyIndex(QueueFamily family) {
+        return this.familyIndices.get(family);
+    }
+
     /**
      * Checks if there is a queue in a specified family. The queue has to have been requested to exist.
      * @param family the queue family to get
@@ -1,18 +1,17 @@
 package io.github.lunbun.pulsar.component.texture;
 
-import io.github.lunbun.pulsar.component.drawing.CommandPool;
 import io.github.lunbun.pulsar.component.presentation.ImageViewsManager;
 import io.github.lunbun.pulsar.component.setup.LogicalDevice;
 import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
-import io.github.lunbun.pulsar.component.setup.QueueManager;
 import io.github.lunbun.pulsar.component.vertex.MemoryAllocator;
+import io.github.lunbun.pulsar.component.vertex.UploadQueue;
 import io.github.lunbun.pulsar.struct.texture.ImageData;
 import io.github.lunbun.pulsar.struct.vertex.BufferData;
+import io.github.lunbun.pulsar.struct.vertex.MemoryUsage;
 import io.github.lunbun.pulsar.util.texture.TextureFormat;
 import io.github.lunbun.pulsar.util.vulkan.ImageUtils;
 import org.lwjgl.stb.STBImage;
 import org.lwjgl.system.MemoryStack;
-import org.lwjgl.vulkan.VK10;
 
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
@@ -44,16 +43,14 @@ public final class Texture extends ImageData {
         private final LogicalDevice device;
         private final PhysicalDevice physicalDevice;
         private final MemoryAllocator memoryAllocator;
-        private final CommandPool commandPool;
-        private final QueueManager queues;
+        private final UploadQueue uploads;
 
         public Loader(LogicalDevice device, PhysicalDevice physicalDevice, MemoryAllocator memoryAllocator,
-                      CommandPool commandPool, QueueManager queues) {
+                      UploadQueue uploads) {
             this.device = device;
             this.physicalDevice = physicalDevice;
             this.memoryAllocator = memoryAllocator;
-            this.commandPool = commandPool;
-            this.queues = queues;
+            this.uploads = uploads;
         }
 
         public void destroy(Texture texture) {
@@ -66,17 +63,13 @@ public final class Texture extends ImageData {
         }
 
         public void uploadPixels(Texture texture, ByteBuffer pixels, int x, int y, int w, int h) {
-            try (MemoryStack stack = MemoryStack.stackPush()) {
-                ImageUtils.uploadPixels(this.device, this.physicalDevice, this.memoryAllocator, this.commandPool,
-                        this.queues, x, y, w, h, texture.imageSize, texture.format.vulkan,
-                        texture, pixels, stack, true);
-            }
+            ImageUtils.uploadPixels(this.uploads, x, y, w, h, texture.format.vulkan, texture, pixels, true);
         }
 
         public Texture createEmpty(int imageSize, int texWidth, int texHeight, TextureFormat format) {
             try (MemoryStack stack = MemoryStack.stackPush()) {
                 ImageData imageData = ImageUtils.createImage(this.device, this.physicalDevice, this.memoryAllocator,
-                        imageSize, texWidth, texHeight, format.vulkan, VK10.VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, stack);
+                        imageSize, texWidth, texHeight, format.vulkan, MemoryUsage.GPU_ONLY, stack);
                 long imageView = ImageViewsManager.createImageView(this.device, imageData.buffer, format.vulkan);
                 return new Texture(imageData, imageSize, texWidth, texHeight, format, imageView, this);
             }
@@ -85,10 +78,9 @@ public final class Texture extends ImageData {
         public Texture createPixels(ByteBuffer pixels, int imageSize, int texWidth, int texHeight, TextureFormat format) {
             try (MemoryStack stack = MemoryStack.stackPush()) {
                 ImageData imageData = ImageUtils.createImage(this.device, this.physicalDevice, this.memoryAllocator,
-                        imageSize, texWidth, texHeight, format.vulkan, VK10.VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, stack);
-                ImageUtils.uploadPixels(this.device, this.physicalDevice, this.memoryAllocator, this.commandPool,
-                        this.queues, 0, 0, texWidth, texHeight, imageSize, format.vulkan, imageData, pixels,
-                        stack, true);
+                        imageSize, texWidth, texHeight, format.vulkan, MemoryUsage.GPU_ONLY, stack);
+                ImageUtils.uploadPixels(this.uploads, 0, 0, texWidth, texHeight, format.vulkan, imageData, pixels,
+                        true);
                 long imageView = ImageViewsManager.createImageView(this.device, imageData.buffer, format.vulkan);
                 return new Texture(imageData, imageSize, texWidth, texHeight, format, imageView, this);
             }
@@ -40,7 +40,7 @@ public final class DescriptorSet {
                     Buffer uniform = ((UniformConfiguration) configuration).uniform;
                     VkDescriptorBufferInfo.Buffer bufferInfo = VkDescriptorBufferInfo.callocStack(1, stack);
                     bufferInfo.buffer(uniform.buffer);
-                    bufferInfo.offset(0);
+                    bufferInfo.offset(uniform.offset);
                     bufferInfo.range(uniform.size);
                     descriptorWrite.descriptorType(VK10.VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER);
                     descriptorWrite.pBufferInfo(bufferInfo);
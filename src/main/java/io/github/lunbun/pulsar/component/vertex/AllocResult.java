@@ -1,11 +1,16 @@
 package io.github.lunbun.pulsar.component.vertex;
 
 public final class AllocResult {
+    public final int memoryType;
     public final long heap;
     public final int pointer;
+    // address the allocation is mapped to, or 0 if the memory is not host visible
+    public final long mapped;
 
-    protected AllocResult(long heap, int pointer) {
+    protected AllocResult(int memoryType, long heap, int pointer, long mapped) {
+        this.memoryType = memoryType;
         this.heap = heap;
         this.pointer = pointer;
+        this.mapped = mapped;
     }
 }
@@ -1,35 +1,55 @@
 package io.github.lunbun.pulsar.component.vertex;
 
-import io.github.lunbun.pulsar.component.drawing.CommandPool;
 import io.github.lunbun.pulsar.component.setup.LogicalDevice;
 import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
-import io.github.lunbun.pulsar.component.setup.QueueManager;
 import io.github.lunbun.pulsar.component.uniform.Uniform;
 import io.github.lunbun.pulsar.struct.vertex.BufferData;
+import io.github.lunbun.pulsar.struct.vertex.MemoryUsage;
 import io.github.lunbun.pulsar.util.vulkan.BufferUtils;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.VK10;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.function.Consumer;
 
 public final class Buffer extends BufferData {
     public int count;
     public boolean useStagingUploads;
+    public final int usage;
 
     private final Builder builder;
+    private final List<Consumer<Buffer>> moveHandlers;
 
-    protected Buffer(Builder builder, int count, boolean useStagingUploads, BufferData bufferData) {
+    protected Buffer(Builder builder, int count, boolean useStagingUploads, int usage, BufferData bufferData) {
         super(bufferData);
         this.builder = builder;
         this.count = count;
         this.useStagingUploads = useStagingUploads;
+        this.usage = usage;
+        this.moveHandlers = new ObjectArrayList<>();
     }
 
     public void destroy() {
         this.builder.destroy(this);
     }
 
+    /**
+     * Adds a handler that is called when the {@link Defragmenter} moves the buffer to different memory, which changes
+     * its buffer handle. Anything holding on to the old handle (like a descriptor set) has to be updated.
+     */
+    public void addMoveHandler(Consumer<Buffer> handler) {
+        this.moveHandlers.add(handler);
+    }
+
+    protected void moved() {
+        for (Consumer<Buffer> handler : this.moveHandlers) {
+            handler.accept(this);
+        }
+    }
+
     public enum Type {
         UNIFORM(VK10.VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT),
         VERTEX(VK10.VK_BUFFER_USAGE_VERTEX_BUFFER_BIT),
@@ -45,38 +65,67 @@ public final class Buffer extends BufferData {
     public static final class Builder {
         private final LogicalDevice device;
         private final PhysicalDevice physicalDevice;
-        private final CommandPool commandPool;
-        private final QueueManager queues;
+        private final UploadQueue uploads;
         private final MemoryAllocator allocator;
+        private final Defragmenter defragmenter;
 
-        public Builder(LogicalDevice device, PhysicalDevice physicalDevice, CommandPool commandPool, QueueManager queues, MemoryAllocator allocator) {
+        public Builder(LogicalDevice device, PhysicalDevice physicalDevice, UploadQueue uploads, MemoryAllocator allocator,
+                       Defragmenter defragmenter) {
             this.device = device;
             this.physicalDevice = physicalDevice;
-            this.commandPool = commandPool;
-            this.queues = queues;
+            this.uploads = uploads;
             this.allocator = allocator;
+            this.defragmenter = defragmenter;
         }
 
         protected void destroy(Buffer buffer) {
-            BufferUtils.destroy(this.device, this.allocator, buffer);
+            if (!this.defragmenter.release(buffer)) {
+                BufferUtils.destroy(this.device, this.allocator, buffer);
+            }
         }
 
+        /**
+         * Creates a buffer, this can be called from any thread, and so can uploading to it. Staged uploads are only
+         * recorded on the calling thread, and the render thread submits them at the start of the next frame (see
+         * {@link UploadQueue}). Other buffers are written directly, which must not happen while a frame in flight
+         * reads them.
+         * If the device local memory of a staged buffer turns out to be host visible (like on integrated GPUs), the
+         * buffer is written directly instead, and {@link #useStagingUploads} is false.
+         */
         public Buffer createBuffer(Type type, int count, long size, boolean useStagingUploads) {
             try (MemoryStack stack = MemoryStack.stackPush()) {
-                BufferData bufferData;
                 if (useStagingUploads) {
-                    bufferData = BufferUtils.createBuffer(this.device, this.physicalDevice, this.allocator, size,
-                            VK10.VK_BUFFER_USAGE_TRANSFER_DST_BIT | type.usage,
-                            VK10.VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, stack);
+                    // device local buffers can be a copy source so that the defragmenter can move them
+                    int usage = VK10.VK_BUFFER_USAGE_TRANSFER_SRC_BIT | VK10.VK_BUFFER_USAGE_TRANSFER_DST_BIT | type.usage;
+                    BufferData bufferData = BufferUtils.createBuffer(this.device, this.physicalDevice, this.allocator,
+                            size, usage, MemoryUsage.GPU_ONLY, stack);
+                    if (bufferData.mapped != 0) {
+                        // a staging copy would only copy between two ranges of the same kind of memory
+                        return new Buffer(this, count, false, usage, bufferData);
+                    }
+                    Buffer buffer = new Buffer(this, count, true, usage, bufferData);
+
+                    // descriptor sets can't be updated while a frame in flight uses them, so uniforms are not moved
+                    if (type != Type.UNIFORM) {
+                        this.defragmenter.track(buffer);
+                    }
+                    return buffer;
                 } else {
-                    bufferData = BufferUtils.createBuffer(this.device, this.physicalDevice, this.allocator, size,
-                            type.usage, VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK10.VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
-                            stack);
+                    BufferData bufferData = BufferUtils.createBuffer(this.device, this.physicalDevice, this.allocator,
+                            size, type.usage, MemoryUsage.CPU_TO_GPU, stack);
+                    return new Buffer(this, count, false, type.usage, bufferData);
                 }
-                return new Buffer(this, count, useStagingUploads, bufferData);
             }
         }
 
+        /**
+         * Creates a stream that elements of the given size are appended to every frame, its
+         * {@link StreamBuffer#beginFrame(int)} has to be called at the start of every frame.
+         */
+        public StreamBuffer createStreamBuffer(Type type, int stride) {
+            return new StreamBuffer(this.device, this.physicalDevice, this.allocator, type.usage, stride);
+        }
+
         public Buffer createVertexBuffer(int count, long size, boolean useStagingUploads) {
             return this.createBuffer(Type.VERTEX, count, size, useStagingUploads);
         }
@@ -90,11 +139,24 @@ public final class Buffer extends BufferData {
         }
 
         private void uploadData(Buffer buffer, Consumer<ByteBuffer> bufferConsumer) {
-            BufferUtils.uploadData(this.device, this.physicalDevice, this.allocator, this.commandPool, this.queues,
-                    buffer, bufferConsumer, buffer.useStagingUploads);
+            // the defragmenter can't start or finish moving the buffer while this holds the lock of the upload queue
+            synchronized (this.uploads) {
+                if (buffer.useStagingUploads) {
+                    this.defragmenter.invalidate(buffer);
+                }
+                BufferUtils.uploadData(this.allocator, this.uploads, buffer, bufferConsumer, buffer.useStagingUploads);
+            }
         }
 
         public void uploadBuffer(Buffer buffer, ByteBuffer byteBuffer) {
+            if (!buffer.useStagingUploads && buffer.mapped != 0 && byteBuffer.isDirect()) {
+                // the buffer is persistently mapped, so this is only a copy into its memory
+                long size = Math.min(byteBuffer.remaining(), buffer.size);
+                MemoryUtil.memCopy(MemoryUtil.memAddress(byteBuffer), buffer.mapped, size);
+                BufferUtils.markWritten(this.allocator, buffer, 0, size);
+                return;
+            }
+
             this.uploadData(buffer, bufferCopy -> {
                 bufferCopy.put(byteBuffer);
                 bufferCopy.rewind();
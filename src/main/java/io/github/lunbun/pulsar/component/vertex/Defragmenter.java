@@ -0,0 +1,359 @@
+package io.github.lunbun.pulsar.component.vertex;
+
+import io.github.lunbun.pulsar.component.drawing.BlockingTimer;
+import io.github.lunbun.pulsar.component.drawing.CommandBuffer;
+import io.github.lunbun.pulsar.component.drawing.CommandPool;
+import io.github.lunbun.pulsar.component.drawing.FrameSynchronizer;
+import io.github.lunbun.pulsar.component.setup.LogicalDevice;
+import io.github.lunbun.pulsar.component.setup.QueueManager;
+import io.github.lunbun.pulsar.struct.setup.QueueFamily;
+import io.github.lunbun.pulsar.struct.vertex.BufferData;
+import io.github.lunbun.pulsar.util.PulsarSettings;
+import io.github.lunbun.pulsar.util.vulkan.BufferUtils;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VK10;
+import org.lwjgl.vulkan.VkMemoryBarrier;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+import org.lwjgl.vulkan.VkSubmitInfo;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compacts device local memory a little bit every frame.
+ * Every {@link PulsarSettings#DEFRAGMENT_INTERVAL} frames, the emptiest slot whose allocations are all movable buffers
+ * is locked, and its buffers are copied into free blocks of other slots. Once a copy has finished, the buffer is
+ * switched over to its new memory and its move handlers are called. The old memory is freed once no frame in flight
+ * can still use it, which releases the locked slot when the last of it is freed.
+ * Buffers can be tracked and released from any thread, but {@link #defragment(int)} has to be called from the
+ * render thread. Uploads to a buffer hold the lock of the {@link UploadQueue} while they invalidate the buffer and
+ * record, and the defragmenter holds it while it starts and finishes moves. So an upload is either recorded before a
+ * move starts (and the buffer is skipped until the upload is submitted), or it cancels the move, and the fields of a
+ * buffer never change while it is uploaded to.
+ */
+public final class Defragmenter {
+    private final LogicalDevice device;
+    private final MemoryAllocator allocator;
+    private final CommandPool commandPool;
+    private final QueueManager queues;
+    private final UploadQueue uploads;
+    private final BlockingTimer fence;
+
+    // movable buffers by the heap they are in
+    private final Long2ObjectOpenHashMap<List<Buffer>> buffers;
+    // moves whose copy has been submitted but might not have finished yet
+    private final Map<Buffer, Move> moves;
+    // old memory of moved buffers, in the order it can be freed
+    private final List<Retired> retired;
+    private CommandBuffer commandBuffer;
+
+    private long heap;
+    private int memoryType;
+    private long frameCount;
+
+    public Defragmenter(LogicalDevice device, MemoryAllocator allocator, CommandPool commandPool, QueueManager queues,
+                        UploadQueue uploads, BlockingTimer.Builder timings) {
+        this.device = device;
+        this.allocator = allocator;
+        this.commandPool = commandPool;
+        this.queues = queues;
+        this.uploads = uploads;
+        this.fence = timings.createTiming(BlockingTimer.Type.FENCE);
+
+        this.buffers = new Long2ObjectOpenHashMap<>();
+        this.moves = new Object2ObjectOpenHashMap<>();
+        this.retired = new ObjectArrayList<>();
+        this.commandBuffer = null;
+
+        this.heap = VK10.VK_NULL_HANDLE;
+        this.frameCount = 0;
+    }
+
+    public synchronized void track(Buffer buffer) {
+        // dedicated and slab allocations can't be compacted any further
+        if (this.allocator.slabs.contains(buffer) || this.allocator.isDedicated(buffer.memory)) {
+            return;
+        }
+
+        List<Buffer> heapBuffers = this.buffers.get(buffer.memory);
+        if (heapBuffers == null) {
+            heapBuffers = new ObjectArrayList<>();
+            this.buffers.put(buffer.memory, heapBuffers);
+        }
+        heapBuffers.add(buffer);
+    }
+
+    private void untrack(Buffer buffer) {
+        List<Buffer> heapBuffers = this.buffers.get(buffer.memory);
+        if (heapBuffers != null) {
+            heapBuffers.remove(buffer);
+            if (heapBuffers.isEmpty()) {
+                this.buffers.remove(buffer.memory);
+            }
+        }
+    }
+
+    /**
+     * Cancels the move of a buffer if its contents change while it is being copied.
+     */
+    public synchronized void invalidate(Buffer buffer) {
+        Move move = this.moves.get(buffer);
+        if (move != null) {
+            move.cancelled = true;
+        }
+    }
+
+    /**
+     * Stops tracking a buffer that is being destroyed.
+     * @return true if the buffer is being copied, in which case the defragmenter destroys it once the copy is finished
+     */
+    public synchronized boolean release(Buffer buffer) {
+        this.untrack(buffer);
+
+        Move move = this.moves.get(buffer);
+        if (move != null) {
+            move.destroyed = true;
+            return true;
+        }
+        return false;
+    }
+
+    public void defragment(int currentFrame) {
+        // uploads lock the upload queue before the defragmenter, so it is locked in the same order here
+        synchronized (this.uploads) {
+            synchronized (this) {
+                this.defragmentLocked();
+            }
+        }
+    }
+
+    private void defragmentLocked() {
+        ++this.frameCount;
+
+        this.finishMoves();
+        while (!this.retired.isEmpty() && this.retired.get(0).frame <= this.frameCount) {
+            BufferUtils.destroy(this.device, this.allocator, this.retired.remove(0).data);
+        }
+
+        // only one batch of copies is in flight at once
+        if (!this.moves.isEmpty()) {
+            return;
+        }
+
+        if (this.heap == VK10.VK_NULL_HANDLE) {
+            if (this.frameCount % PulsarSettings.DEFRAGMENT_INTERVAL != 0 || !this.chooseSlot()) {
+                return;
+            }
+        }
+
+        this.moveBuffers();
+    }
+
+    // picks the emptiest slot that only holds movable buffers, and locks it
+    private boolean chooseSlot() {
+        long bestHeap = VK10.VK_NULL_HANDLE;
+        float bestOccupancy = PulsarSettings.DEFRAGMENT_MAX_OCCUPANCY;
+
+        for (Long2ObjectMap.Entry<List<Buffer>> entry : this.buffers.long2ObjectEntrySet()) {
+            long heap = entry.getLongKey();
+            int memoryType = entry.getValue().get(0).memoryType;
+            if (this.allocator.getAllocationCount(memoryType, heap) != entry.getValue().size()) {
+                continue;
+            }
+
+            float occupancy = this.allocator.getOccupancy(memoryType, heap);
+            if (occupancy <= bestOccupancy) {
+                bestHeap = heap;
+                bestOccupancy = occupancy;
+            }
+        }
+
+        if (bestHeap == VK10.VK_NULL_HANDLE) {
+            return false;
+        }
+
+        this.heap = bestHeap;
+        this.memoryType = this.buffers.get(bestHeap).get(0).memoryType;
+        this.allocator.lockSlot(this.memoryType, this.heap);
+        return true;
+    }
+
+    private void stopSlot() {
+        this.allocator.unlockSlot(this.memoryType, this.heap);
+        this.heap = VK10.VK_NULL_HANDLE;
+    }
+
+    private void moveBuffers() {
+        List<Buffer> heapBuffers = this.buffers.get(this.heap);
+        if (heapBuffers == null) {
+            // every buffer has been moved out, so the slot is freed along with the last of the retired memory. If
+            // something that can't be moved was allocated in the slot before it was locked, unlocking it afterwards
+            // makes the rest of the slot usable again.
+            if (this.retired.isEmpty()) {
+                this.stopSlot();
+            }
+            return;
+        }
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            long start = System.nanoTime();
+            long bytes = 0;
+
+            for (Buffer buffer : heapBuffers) {
+                // the copy would be ordered before an upload that hasn't been submitted yet, and copy stale data
+                if (this.uploads.isPending(buffer)) {
+                    continue;
+                }
+
+                // always move at least one buffer, so that a buffer larger than the budget still gets moved
+                if (!this.moves.isEmpty() && (bytes + buffer.size > PulsarSettings.DEFRAGMENT_BYTE_BUDGET ||
+                        System.nanoTime() - start > PulsarSettings.DEFRAGMENT_TIME_BUDGET)) {
+                    break;
+                }
+
+                BufferData target = this.allocateTarget(buffer, stack);
+                if (target == null) {
+                    // the rest of the memory type is too full to take the buffers of this slot
+                    this.stopSlot();
+                    break;
+                }
+
+                if (this.commandBuffer == null) {
+                    this.commandBuffer = this.commandPool.allocateBuffer();
+                    this.commandBuffer.startRecordingOneTimeSubmit();
+                }
+                BufferUtils.copyBuffer(buffer, target, (int) buffer.size, this.commandBuffer);
+                this.moves.put(buffer, new Move(target));
+                bytes += buffer.size;
+            }
+
+            if (this.commandBuffer != null) {
+                // frames after the fence read the new memory, and waiting for a fence on the host doesn't make the
+                // copies visible to them
+                VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.callocStack(1, stack);
+                barrier.sType(VK10.VK_STRUCTURE_TYPE_MEMORY_BARRIER);
+                barrier.srcAccessMask(VK10.VK_ACCESS_TRANSFER_WRITE_BIT);
+                barrier.dstAccessMask(UploadQueue.BUFFER_CONSUMER_ACCESS);
+                this.commandBuffer.pipelineBarrier(barrier, VK10.VK_PIPELINE_STAGE_TRANSFER_BIT,
+                        UploadQueue.CONSUMER_STAGES);
+                this.commandBuffer.endRecording();
+
+                VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack);
+                submitInfo.sType(VK10.VK_STRUCTURE_TYPE_SUBMIT_INFO);
+                submitInfo.pCommandBuffers(stack.pointers(this.commandBuffer.buffer));
+
+                VK10.vkResetFences(this.device.device, this.fence.handle);
+                if (VK10.vkQueueSubmit(this.queues.getQueue(QueueFamily.GRAPHICS), submitInfo, this.fence.handle) != VK10.VK_SUCCESS) {
+                    throw new RuntimeException("Failed to submit defragmentation command buffer!");
+                }
+            }
+        }
+    }
+
+    private BufferData allocateTarget(Buffer buffer, MemoryStack stack) {
+        long handle = BufferUtils.createBuffer(this.device, buffer.size, buffer.usage, stack);
+        VkMemoryRequirements memoryRequirements = BufferUtils.getMemoryRequirements(this.device, handle, stack);
+
+        AllocResult allocResult = this.allocator.tryMallocAligned(buffer.memoryType, (int) memoryRequirements.size(),
+                (int) memoryRequirements.alignment());
+        if (allocResult == null) {
+            VK10.vkDestroyBuffer(this.device.device, handle, null);
+            return null;
+        }
+
+        VK10.vkBindBufferMemory(this.device.device, handle, allocResult.heap, allocResult.pointer);
+        return new BufferData(handle, buffer.memoryType, allocResult.heap, allocResult.pointer, buffer.size,
+                (int) memoryRequirements.size(), 0, allocResult.mapped);
+    }
+
+    private void finishMoves() {
+        if (this.moves.isEmpty() || VK10.vkGetFenceStatus(this.device.device, this.fence.handle) != VK10.VK_SUCCESS) {
+            return;
+        }
+
+        this.commandPool.freeBuffer(this.commandBuffer);
+        this.commandBuffer = null;
+
+        for (Map.Entry<Buffer, Move> entry : this.moves.entrySet()) {
+            Buffer buffer = entry.getKey();
+            Move move = entry.getValue();
+
+            if (move.destroyed) {
+                BufferUtils.destroy(this.device, this.allocator, buffer);
+                BufferUtils.destroy(this.device, this.allocator, move.target);
+                continue;
+            }
+            if (move.cancelled) {
+                // the buffer stays where it is, and is tried again next frame
+                BufferUtils.destroy(this.device, this.allocator, move.target);
+                continue;
+            }
+
+            // frames that are still in flight might use the old buffer
+            this.retired.add(new Retired(new BufferData(buffer.buffer, buffer.memoryType, buffer.memory, buffer.pointer,
+                    buffer.size, buffer.allocSize, buffer.offset, buffer.mapped),
+                    this.frameCount + FrameSynchronizer.MAX_FRAMES_IN_FLIGHT));
+
+            this.untrack(buffer);
+            buffer.buffer = move.target.buffer;
+            buffer.memory = move.target.memory;
+            buffer.pointer = move.target.pointer;
+            buffer.allocSize = move.target.allocSize;
+            buffer.offset = move.target.offset;
+            buffer.mapped = move.target.mapped;
+            this.track(buffer);
+
+            buffer.moved();
+        }
+        this.moves.clear();
+    }
+
+    public synchronized void destroy() {
+        for (Map.Entry<Buffer, Move> entry : this.moves.entrySet()) {
+            if (entry.getValue().destroyed) {
+                BufferUtils.destroy(this.device, this.allocator, entry.getKey());
+            }
+            BufferUtils.destroy(this.device, this.allocator, entry.getValue().target);
+        }
+        this.moves.clear();
+
+        for (Retired retired : this.retired) {
+            BufferUtils.destroy(this.device, this.allocator, retired.data);
+        }
+        this.retired.clear();
+
+        if (this.commandBuffer != null) {
+            this.commandPool.freeBuffer(this.commandBuffer);
+            this.commandBuffer = null;
+        }
+        this.buffers.clear();
+    }
+
+    private static final class Move {
+        public final BufferData target;
+        // the contents of the buffer changed during the copy
+        public boolean cancelled;
+        // the buffer was destroyed during the copy
+        public boolean destroyed;
+
+        public Move(BufferData target) {
+            this.target = target;
+            this.cancelled = false;
+            this.destroyed = false;
+        }
+    }
+
+    private static final class Retired {
+        public final BufferData data;
+        public final long frame;
+
+        public Retired(BufferData data, long frame) {
+            this.data = data;
+            this.frame = frame;
+        }
+    }
+}
@@ -2,238 +2,858 @@ package io.github.lunbun.pulsar.component.vertex;
 
 import io.github.lunbun.pulsar.PulsarApplication;
 import io.github.lunbun.pulsar.component.setup.LogicalDevice;
-import io.github.lunbun.pulsar.util.misc.MathUtils;
+import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
+import io.github.lunbun.pulsar.struct.vertex.MemoryStatistics;
+import io.github.lunbun.pulsar.util.PulsarSettings;
+import io.github.lunbun.pulsar.util.vulkan.AlignmentUtils;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
-import org.lwjgl.vulkan.VK10;
-import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+import org.lwjgl.vulkan.*;
 
 import java.nio.LongBuffer;
 import java.util.List;
-import java.util.Map;
 
-// TODO: more optimized allocator
 public final class MemoryAllocator {
+    // most separate dirty ranges kept for a heap before they are merged into one
+    private static final int MAX_DIRTY_RANGES = 64;
+
     // memory allocation terminology used in this allocator (not official terminology):
-    // cell: multiple bytes. Allocations are turned into the number of cells they are allocating, then the allocator
-    //          finds the first occurrence of that number of empty cells
-    // header: a boolean value. The header determines if the cell at the corresponding index is claimed or not.
+    // block: a contiguous range of bytes inside of a slot, which is either free or claimed. Blocks inside of a slot
+    //          are linked together in address order so that a freed block can be merged with its free neighbours.
+    // free list: a list of free blocks whose sizes fall in the same size class. The allocator is a two-level
+    //          segregated fit (TLSF) allocator: the first level splits sizes by power of two, the second level
+    //          splits each power of two linearly. Two bitmaps track which lists are non-empty, so finding a free
+    //          block that is large enough is constant time no matter how many slots or blocks there are.
     // heap: Vulkan memory. The heap is a handle to the Vulkan memory allocation that is split up by the allocator.
-    //          Heap size may also mean the number of cells per slot.
     // memory type: the type of physical memory. Example: Device local memory (usually video memory), host visible
     //          memory (usually system memory)
-    // slot: heap + cells + headers. Stores all of the memory data into a class so that the memory used by this program
-    //          can grow dynamically. Note: there is a hard-coded cap of 4096 slots. See the end of
-    //          https://vulkan-tutorial.com/Vertex_buffers/Staging_buffer for the reason why.
-
-    // 4 megabytes/slot
-    private static final int CELL_SIZE = 512; // # of bytes/cell
-    private static final int HEAP_SIZE = 8192; // # of cells
+    // slot: heap + blocks. Stores all of the memory data into a class so that the memory used by this program
+    //          can grow dynamically. Each new slot of a memory type is twice as large as the last one, up to a limit,
+    //          so that a growing program needs few slots. Note: there is a hard-coded cap of 4096 slots. See the end
+    //          of https://vulkan-tutorial.com/Vertex_buffers/Staging_buffer for the reason why.
+    //          A slot that stays empty for a while is given back to the driver, unless the memory type would drop
+    //          below its minimum reserve.
+    // mapped slot: a slot of host visible memory is mapped once when it is created and stays mapped until it is freed,
+    //          so writing to an allocation never needs vkMapMemory. Writes to memory that isn't host coherent are
+    //          marked dirty, and the dirty ranges are flushed together before the next submission.
+    // dedicated slot: a slot holding exactly one large allocation. It is freed as soon as the allocation is freed
+    //          instead of being split up, so large resources don't waste the rest of a shared slot.
+    // locked slot: a slot whose free blocks are hidden from the free lists, so nothing new is allocated in it. Used
+    //          by the defragmenter to empty out a slot, a locked slot is freed as soon as its last block is freed.
+    //
+    // the allocator can be used from any thread. Each memory type has its own lock, so threads allocating different
+    // kinds of memory (like device local meshes and host visible staging buffers) don't wait on each other.
 
     private final LogicalDevice device;
-    private final Map<Integer, Typed> typedAllocators;
-
-    public MemoryAllocator(LogicalDevice device) {
+    private final VkPhysicalDevice physicalDevice;
+    private final int[] memoryTypeFlags;
+    private final int[] memoryTypeHeaps;
+    private final long[] heapSizes;
+    // VK_EXT_memory_budget can only be queried through vkGetPhysicalDeviceMemoryProperties2
+    private final boolean hasBudget;
+    private final Typed[] typedAllocators;
+    // slots of all memory types by their heap handle, so frees don't have to search for the slot of a heap, guarded
+    // by its own lock since it is shared between memory types
+    private final Long2ObjectOpenHashMap<MemorySlot> slots;
+    // written ranges of non-coherent memory by their heap, as (start, end) pairs aligned to nonCoherentAtomSize,
+    // guarded by its own lock
+    private final Long2ObjectOpenHashMap<LongList> dirtyRanges;
+    private final long nonCoherentAtomSize;
+    public final SlabAllocator slabs;
+
+    public MemoryAllocator(LogicalDevice device, PhysicalDevice physicalDevice) {
         this.device = device;
-        this.typedAllocators = new Int2ObjectOpenHashMap<>();
+        this.physicalDevice = physicalDevice.device;
+        this.hasBudget = device.device.getCapabilities().VK_EXT_memory_budget &&
+                physicalDevice.device.getCapabilities().VK_KHR_get_physical_device_properties2;
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkPhysicalDeviceMemoryProperties memProperties = VkPhysicalDeviceMemoryProperties.callocStack(stack);
+            VK10.vkGetPhysicalDeviceMemoryProperties(physicalDevice.device, memProperties);
+
+            this.memoryTypeFlags = new int[memProperties.memoryTypeCount()];
+            this.memoryTypeHeaps = new int[memProperties.memoryTypeCount()];
+            for (int i = 0; i < this.memoryTypeFlags.length; ++i) {
+                this.memoryTypeFlags[i] = memProperties.memoryTypes(i).propertyFlags();
+                this.memoryTypeHeaps[i] = memProperties.memoryTypes(i).heapIndex();
+            }
+
+            this.heapSizes = new long[memProperties.memoryHeapCount()];
+            for (int i = 0; i < this.heapSizes.length; ++i) {
+                this.heapSizes[i] = memProperties.memoryHeaps(i).size();
+            }
+
+            this.nonCoherentAtomSize = physicalDevice.getLimits(stack).nonCoherentAtomSize();
+        }
+
+        // every memory type gets its allocator up front, so that threads never race to create one
+        this.typedAllocators = new Typed[this.memoryTypeFlags.length];
+        for (int i = 0; i < this.typedAllocators.length; ++i) {
+            this.typedAllocators[i] = new Typed(this, i);
+        }
+
+        this.slots = new Long2ObjectOpenHashMap<>();
+        this.dirtyRanges = new Long2ObjectOpenHashMap<>();
+        this.slabs = new SlabAllocator(device, physicalDevice, this);
+    }
+
+    private Typed getTyped(int memoryType) {
+        return this.typedAllocators[memoryType];
     }
 
     public AllocResult mallocAligned(int memoryType, int size, int alignment) {
-        this.typedAllocators.computeIfAbsent(memoryType, type -> new Typed(this.device, type, HEAP_SIZE, CELL_SIZE));
-        return this.typedAllocators.get(memoryType).mallocAligned(size, alignment);
+        AllocResult result = this.getTyped(memoryType).mallocAligned(size, alignment);
+        if (result == null) {
+            throw new RuntimeException("Failed to allocate buffer memory!");
+        }
+        return result;
     }
 
     public AllocResult malloc(int memoryType, int size) {
-        this.typedAllocators.computeIfAbsent(memoryType, type -> new Typed(this.device, type, HEAP_SIZE, CELL_SIZE));
-        return this.typedAllocators.get(memoryType).mallocAligned(size, 1);
+        return this.mallocAligned(memoryType, size, 1);
+    }
+
+    /**
+     * Allocates memory like {@link #mallocAligned(int, int, int)}, but returns null instead of throwing if the heap of
+     * the memory type is out of memory, so that the caller can try another memory type.
+     */
+    public AllocResult mallocAlignedOrNull(int memoryType, int size, int alignment) {
+        return this.getTyped(memoryType).mallocAligned(size, alignment);
+    }
+
+    /**
+     * Allocates memory only if it fits in the memory that is already allocated, without creating a new slot or a
+     * dedicated allocation.
+     * @return the allocation, or null if there is no free block large enough
+     */
+    public AllocResult tryMallocAligned(int memoryType, int size, int alignment) {
+        return this.getTyped(memoryType).tryMallocAligned(size, alignment);
     }
 
     public void free(long heap, int memoryType, int pointer, int size) {
-        this.typedAllocators.get(memoryType).free(heap, pointer, size);
+        this.getTyped(memoryType).free(this.getSlot(heap), pointer);
+    }
+
+    private MemorySlot findSlot(long heap) {
+        synchronized (this.slots) {
+            return this.slots.get(heap);
+        }
+    }
+
+    private MemorySlot getSlot(long heap) {
+        MemorySlot slot = this.findSlot(heap);
+        if (slot == null) {
+            throw new RuntimeException("Invalid heap");
+        }
+        return slot;
+    }
+
+    public boolean isDedicated(long heap) {
+        return this.getSlot(heap).dedicated;
+    }
+
+    public int getAllocationCount(int memoryType, long heap) {
+        MemorySlot slot = this.getSlot(heap);
+        synchronized (this.getTyped(memoryType)) {
+            return slot.claimed.size();
+        }
+    }
+
+    /**
+     * @return the fraction of the slot that is claimed, from 0 to 1
+     */
+    public float getOccupancy(int memoryType, long heap) {
+        MemorySlot slot = this.getSlot(heap);
+        synchronized (this.getTyped(memoryType)) {
+            return (float) slot.usedSize / slot.size;
+        }
+    }
+
+    public void lockSlot(int memoryType, long heap) {
+        this.getTyped(memoryType).lockSlot(this.getSlot(heap));
+    }
+
+    public void unlockSlot(int memoryType, long heap) {
+        MemorySlot slot = this.findSlot(heap);
+        // the slot is already gone if every block in it was freed while it was locked
+        if (slot != null) {
+            this.getTyped(memoryType).unlockSlot(slot);
+        }
+    }
+
+    /**
+     * Collects statistics about the memory types that have been allocated from, and the budgets of all memory heaps.
+     * This walks some free lists and queries the driver, so it is meant to be polled occasionally, not every
+     * allocation.
+     */
+    public MemoryStatistics getStatistics() {
+        List<MemoryStatistics.Type> types = new ObjectArrayList<>();
+        for (Typed typed : this.typedAllocators) {
+            synchronized (typed) {
+                if (typed.slots.isEmpty()) {
+                    continue;
+                }
+
+                types.add(new MemoryStatistics.Type(typed.memoryType, this.memoryTypeHeaps[typed.memoryType],
+                        this.memoryTypeFlags[typed.memoryType], typed.getMemorySize(), typed.getUsedSize(),
+                        typed.getAllocationCount(), typed.slots.size(), typed.getLargestFreeBlock()));
+            }
+        }
+
+        List<MemoryStatistics.Heap> heaps = new ObjectArrayList<>();
+        if (this.hasBudget) {
+            try (MemoryStack stack = MemoryStack.stackPush()) {
+                VkPhysicalDeviceMemoryBudgetPropertiesEXT budgetProperties =
+                        VkPhysicalDeviceMemoryBudgetPropertiesEXT.callocStack(stack);
+                budgetProperties.sType(EXTMemoryBudget.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_MEMORY_BUDGET_PROPERTIES_EXT);
+
+                VkPhysicalDeviceMemoryProperties2 memProperties = VkPhysicalDeviceMemoryProperties2.callocStack(stack);
+                memProperties.sType(KHRGetPhysicalDeviceProperties2.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_MEMORY_PROPERTIES_2_KHR);
+                memProperties.pNext(budgetProperties.address());
+                KHRGetPhysicalDeviceProperties2.vkGetPhysicalDeviceMemoryProperties2KHR(this.physicalDevice,
+                        memProperties);
+
+                for (int i = 0; i < this.heapSizes.length; ++i) {
+                    heaps.add(new MemoryStatistics.Heap(i, this.heapSizes[i], budgetProperties.heapBudget(i),
+                            budgetProperties.heapUsage(i)));
+                }
+            }
+        } else {
+            for (int i = 0; i < this.heapSizes.length; ++i) {
+                heaps.add(new MemoryStatistics.Heap(i, this.heapSizes[i], this.heapSizes[i], -1));
+            }
+        }
+
+        return new MemoryStatistics(types, heaps, this.hasBudget);
+    }
+
+    public boolean isCoherent(int memoryType) {
+        return (this.memoryTypeFlags[memoryType] & VK10.VK_MEMORY_PROPERTY_HOST_COHERENT_BIT) != 0;
+    }
+
+    /**
+     * Marks bytes of mapped memory as written by the host. If the memory isn't host coherent, the device only sees them
+     * after {@link #flushMappedRanges()}.
+     * @param offset the offset of the bytes in the heap
+     */
+    public void markDirty(int memoryType, long heap, long offset, long size) {
+        if (this.isCoherent(memoryType) || size <= 0) {
+            return;
+        }
+
+        // the range has to be aligned to the atom size, except that it can end at the end of the heap
+        long start = offset / this.nonCoherentAtomSize * this.nonCoherentAtomSize;
+        long end = Math.min(AlignmentUtils.alignas(offset + size, this.nonCoherentAtomSize),
+                this.getSlot(heap).size);
+
+        synchronized (this.dirtyRanges) {
+            LongList ranges = this.dirtyRanges.get(heap);
+            if (ranges == null) {
+                ranges = new LongArrayList();
+                this.dirtyRanges.put(heap, ranges);
+            }
+
+            // writes are usually sequential, so they are merged into the last range if they touch it
+            int last = ranges.size() - 2;
+            if (last >= 0 && start <= ranges.getLong(last + 1) && end >= ranges.getLong(last)) {
+                ranges.set(last, Math.min(start, ranges.getLong(last)));
+                ranges.set(last + 1, Math.max(end, ranges.getLong(last + 1)));
+            } else if (ranges.size() / 2 >= MAX_DIRTY_RANGES) {
+                // too many scattered writes, so everything between them is flushed
+                for (int i = 0; i < ranges.size(); i += 2) {
+                    start = Math.min(start, ranges.getLong(i));
+                    end = Math.max(end, ranges.getLong(i + 1));
+                }
+                ranges.size(2);
+                ranges.set(0, start);
+                ranges.set(1, end);
+            } else {
+                ranges.add(start);
+                ranges.add(end);
+            }
+        }
+    }
+
+    /**
+     * Flushes every range of non-coherent memory that has been written since the last flush, has to be called before
+     * submitting work that reads the memory.
+     */
+    public void flushMappedRanges() {
+        synchronized (this.dirtyRanges) {
+            if (this.dirtyRanges.isEmpty()) {
+                return;
+            }
+
+            for (Long2ObjectMap.Entry<LongList> entry : this.dirtyRanges.long2ObjectEntrySet()) {
+                LongList ranges = entry.getValue();
+                try (MemoryStack stack = MemoryStack.stackPush()) {
+                    VkMappedMemoryRange.Buffer pMemoryRanges = VkMappedMemoryRange.callocStack(ranges.size() / 2, stack);
+                    for (int i = 0; i < ranges.size(); i += 2) {
+                        VkMappedMemoryRange range = pMemoryRanges.get(i / 2);
+                        range.sType(VK10.VK_STRUCTURE_TYPE_MAPPED_MEMORY_RANGE);
+                        range.memory(entry.getLongKey());
+                        range.offset(ranges.getLong(i));
+                        range.size(ranges.getLong(i + 1) - ranges.getLong(i));
+                    }
+
+                    if (VK10.vkFlushMappedMemoryRanges(this.device.device, pMemoryRanges) != VK10.VK_SUCCESS) {
+                        throw new RuntimeException("Failed to flush mapped memory ranges!");
+                    }
+                }
+            }
+            this.dirtyRanges.clear();
+        }
+    }
+
+    /**
+     * Frees slots that have been empty for {@link PulsarSettings#EMPTY_SLOT_FRAMES} calls, should be called once a
+     * frame.
+     */
+    public void releaseEmptySlots() {
+        for (Typed typedAllocator : this.typedAllocators) {
+            typedAllocator.releaseEmptySlots();
+        }
     }
 
     public void destroy() {
-        for (Typed typedAllocator : this.typedAllocators.values()) {
+        this.slabs.destroy();
+        for (Typed typedAllocator : this.typedAllocators) {
             typedAllocator.destroy();
         }
+        synchronized (this.slots) {
+            this.slots.clear();
+        }
     }
 
-    private static final class MemorySlot {
-        // pack each boolean tightly into a byte to avoid using any extra memory
-        private final byte[] headers;
-        public long heap;
+    private static final class MemoryBlock {
+        public final MemorySlot slot;
+        public int offset;
+        public int size;
+        public boolean free;
+
+        // neighbouring blocks in the slot, in address order
+        public MemoryBlock prevPhysical;
+        public MemoryBlock nextPhysical;
+
+        // neighbouring blocks in the free list, only used while the block is free
+        public MemoryBlock prevFree;
+        public MemoryBlock nextFree;
+
+        public MemoryBlock(MemorySlot slot, int offset, int size) {
+            this.slot = slot;
+            this.offset = offset;
+            this.size = size;
+            this.free = true;
+        }
+    }
 
-        public MemorySlot(byte[] headers, long heap) {
-            this.headers = headers;
+    private static final class MemorySlot {
+        public final long heap;
+        public final int size;
+        public final boolean dedicated;
+        // address the whole slot is mapped to, or 0 if the memory type is not host visible
+        public final long mapped;
+        // claimed blocks by their offset, so that a free can find its block without walking the slot
+        public final Int2ObjectOpenHashMap<MemoryBlock> claimed;
+        // the block at offset 0, blocks are only ever merged into the block before them so this never changes
+        public MemoryBlock first;
+        public int usedSize;
+        public boolean locked;
+        // number of frames in a row that the slot has been empty
+        public int emptyFrames;
+
+        public MemorySlot(long heap, int size, boolean dedicated, long mapped) {
             this.heap = heap;
+            this.size = size;
+            this.dedicated = dedicated;
+            this.mapped = mapped;
+            this.claimed = new Int2ObjectOpenHashMap<>();
+            this.usedSize = 0;
+            this.locked = false;
+            this.emptyFrames = 0;
         }
     }
 
     private static final class Typed {
-        private final int cellSize;
+        // every block offset and size is a multiple of ALIGN_SIZE
+        private static final int ALIGN_SIZE_LOG2 = 4;
+        private static final int ALIGN_SIZE = 1 << ALIGN_SIZE_LOG2;
+        // number of second level lists per first level list
+        private static final int SL_INDEX_COUNT_LOG2 = 4;
+        private static final int SL_INDEX_COUNT = 1 << SL_INDEX_COUNT_LOG2;
+        // blocks smaller than SMALL_BLOCK_SIZE all go into the first first level list, split linearly by ALIGN_SIZE
+        private static final int FL_INDEX_SHIFT = SL_INDEX_COUNT_LOG2 + ALIGN_SIZE_LOG2;
+        private static final int FL_INDEX_MAX = 30;
+        private static final int FL_INDEX_COUNT = FL_INDEX_MAX - FL_INDEX_SHIFT + 2;
+        private static final int SMALL_BLOCK_SIZE = 1 << FL_INDEX_SHIFT;
+
+        private final MemoryAllocator allocator;
         private final LogicalDevice device;
         private final int memoryType;
-        private final int heapCellSize;
+        private final boolean hostVisible;
+        private int nextSlotSize;
+        private long memorySize;
+        private long usedSize;
+        private int allocationCount;
 
         private final List<MemorySlot> slots;
 
-        public Typed(LogicalDevice device, int memoryType, int heapCellSize, int cellSize) {
-            this.cellSize = cellSize;
-            this.memoryType = memoryType;
-            this.heapCellSize = heapCellSize;
+        private int flBitmap;
+        private final int[] slBitmaps;
+        private final MemoryBlock[] freeLists;
 
-            if ((heapCellSize & 7) != 0) {
-                throw new RuntimeException("Heap must be a multiple of 8!");
+        public Typed(MemoryAllocator allocator, int memoryType) {
+            this.allocator = allocator;
+            this.device = allocator.device;
+            this.memoryType = memoryType;
+            this.hostVisible = (allocator.memoryTypeFlags[memoryType] & VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT) != 0;
+            this.nextSlotSize = PulsarSettings.MEMORY_SLOT_SIZE;
+            this.memorySize = 0;
+            this.usedSize = 0;
+            this.allocationCount = 0;
+
+            if ((this.nextSlotSize & (ALIGN_SIZE - 1)) != 0) {
+                throw new RuntimeException("Slot size must be a multiple of " + ALIGN_SIZE + "!");
             }
 
-            this.device = device;
-
             this.slots = new ObjectArrayList<>();
-            this.createSlot();
+            this.flBitmap = 0;
+            this.slBitmaps = new int[FL_INDEX_COUNT];
+            this.freeLists = new MemoryBlock[FL_INDEX_COUNT * SL_INDEX_COUNT];
         }
 
-        public void destroy() {
+        public synchronized void destroy() {
             for (MemorySlot slot : this.slots) {
-                VK10.vkFreeMemory(this.device.device, slot.heap, null);
+                this.freeMemory(slot);
             }
+            this.slots.clear();
         }
 
         public long getMemorySize() {
-            return (long) this.slots.size() * this.heapCellSize * this.cellSize;
+            return this.memorySize;
         }
 
-        private MemorySlot createSlot() {
-            try (MemoryStack stack = MemoryStack.stackPush()) {
-                byte[] headers = new byte[this.heapCellSize >> 3];
+        public long getUsedSize() {
+            return this.usedSize;
+        }
+
+        public int getAllocationCount() {
+            return this.allocationCount;
+        }
+
+        public int getLargestFreeBlock() {
+            if (this.flBitmap == 0) {
+                return 0;
+            }
+
+            // the largest free block is in the highest non-empty list, but blocks in a list are not sorted by size
+            int fl = 31 - Integer.numberOfLeadingZeros(this.flBitmap);
+            int sl = 31 - Integer.numberOfLeadingZeros(this.slBitmaps[fl]);
+            int largest = 0;
+            for (MemoryBlock block = this.freeLists[(fl << SL_INDEX_COUNT_LOG2) | sl]; block != null; block = block.nextFree) {
+                largest = Math.max(largest, block.size);
+            }
+            return largest;
+        }
+
+        private void checkSlotCap() {
+            synchronized (this.allocator.slots) {
+                if (this.allocator.slots.size() >= 4096) {
+                    throw new RuntimeException("Reached cap of 4096 memory slots!");
+                }
+            }
+        }
 
+        private long allocateMemory(int size) {
+            try (MemoryStack stack = MemoryStack.stackPush()) {
                 VkMemoryAllocateInfo allocInfo = VkMemoryAllocateInfo.callocStack(stack);
                 allocInfo.sType(VK10.VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO);
-                allocInfo.allocationSize((long) this.heapCellSize * this.cellSize);
+                allocInfo.allocationSize(size);
                 allocInfo.memoryTypeIndex(this.memoryType);
 
                 LongBuffer pMemoryHeap = stack.mallocLong(1);
 
                 if (VK10.vkAllocateMemory(this.device.device, allocInfo, null, pMemoryHeap) != VK10.VK_SUCCESS) {
-                    throw new RuntimeException("Failed to allocate buffer memory!");
+                    return VK10.VK_NULL_HANDLE;
+                }
+
+                return pMemoryHeap.get(0);
+            }
+        }
+
+        private long mapMemory(long heap) {
+            if (!this.hostVisible) {
+                return 0;
+            }
+
+            try (MemoryStack stack = MemoryStack.stackPush()) {
+                PointerBuffer pData = stack.mallocPointer(1);
+                if (VK10.vkMapMemory(this.device.device, heap, 0, VK10.VK_WHOLE_SIZE, 0, pData) != VK10.VK_SUCCESS) {
+                    throw new RuntimeException("Failed to map memory!");
+                }
+                return pData.get(0);
+            }
+        }
+
+        private void freeMemory(MemorySlot slot) {
+            if (slot.mapped != 0) {
+                VK10.vkUnmapMemory(this.device.device, slot.heap);
+                synchronized (this.allocator.dirtyRanges) {
+                    this.allocator.dirtyRanges.remove(slot.heap);
                 }
+            }
+            VK10.vkFreeMemory(this.device.device, slot.heap, null);
+        }
+
+        private MemorySlot addSlot(long heap, int size, boolean dedicated) {
+            MemorySlot slot = new MemorySlot(heap, size, dedicated, this.mapMemory(heap));
+            this.slots.add(slot);
+            synchronized (this.allocator.slots) {
+                this.allocator.slots.put(heap, slot);
+            }
+            this.memorySize += size;
+            return slot;
+        }
+
+        private void removeSlot(MemorySlot slot) {
+            this.freeMemory(slot);
+            this.slots.remove(slot);
+            synchronized (this.allocator.slots) {
+                this.allocator.slots.remove(slot.heap);
+            }
+            this.memorySize -= slot.size;
+        }
+
+        /**
+         * Creates a slot whose free block is found by a search for the size
+         * @return the slot, or null if the memory heap is out of memory
+         */
+        private MemorySlot createSlot(int searchSize) {
+            this.checkSlotCap();
+
+            // a search rounds up to the next free list, so the block has to be at least as large as that list
+            int minSize = mappingSize(mappingSearch(searchSize));
+            int size = Math.max(this.nextSlotSize, minSize);
+            long heap = this.allocateMemory(size);
+            if (heap != VK10.VK_NULL_HANDLE) {
+                this.nextSlotSize = Math.min(this.nextSlotSize * 2, PulsarSettings.MAX_MEMORY_SLOT_SIZE);
+            } else if (size > minSize) {
+                // a grown slot might not fit in what is left of the memory heap, so try again with only what is needed
+                size = minSize;
+                heap = this.allocateMemory(size);
+            }
+
+            if (heap == VK10.VK_NULL_HANDLE) {
+                return null;
+            }
 
-                long memoryHeap = pMemoryHeap.get(0);
+            MemorySlot slot = this.addSlot(heap, size, false);
+            slot.first = new MemoryBlock(slot, 0, size);
+            this.insertFree(slot.first);
+            return slot;
+        }
 
-                MemorySlot slot = new MemorySlot(headers, memoryHeap);
-                this.slots.add(slot);
+        private AllocResult mallocDedicated(int size) {
+            this.checkSlotCap();
 
-                return slot;
+            long heap = this.allocateMemory(size);
+            if (heap == VK10.VK_NULL_HANDLE) {
+                return null;
             }
+
+            MemorySlot slot = this.addSlot(heap, size, true);
+            MemoryBlock block = new MemoryBlock(slot, 0, size);
+            block.free = false;
+            slot.first = block;
+            slot.claimed.put(0, block);
+            slot.usedSize += size;
+            this.usedSize += size;
+            ++this.allocationCount;
+            return new AllocResult(this.memoryType, heap, 0, slot.mapped);
         }
 
-        private boolean isEmpty(MemorySlot slot, int cellIndex) {
-            byte header = slot.headers[cellIndex >> 3];
-            return ((header >> (cellIndex & 7)) & 1) == 0;
+        // index of the free list that a block of this size belongs in
+        private static int mappingInsert(int size) {
+            int fl;
+            int sl;
+            if (size < SMALL_BLOCK_SIZE) {
+                fl = 0;
+                sl = size / (SMALL_BLOCK_SIZE / SL_INDEX_COUNT);
+            } else {
+                int log2 = 31 - Integer.numberOfLeadingZeros(size);
+                sl = (size >>> (log2 - SL_INDEX_COUNT_LOG2)) ^ SL_INDEX_COUNT;
+                fl = log2 - (FL_INDEX_SHIFT - 1);
+            }
+            return (fl << SL_INDEX_COUNT_LOG2) | sl;
         }
 
-        private void claim(MemorySlot slot, int index) {
-            slot.headers[index >> 3] |= (1 << (index & 7));
+        // index of the first free list where every block is guaranteed to fit this size
+        private static int mappingSearch(int size) {
+            if (size >= SMALL_BLOCK_SIZE) {
+                size += (1 << (31 - Integer.numberOfLeadingZeros(size) - SL_INDEX_COUNT_LOG2)) - 1;
+            }
+            return mappingInsert(size);
         }
 
-        private void unclaim(MemorySlot slot, int index) {
-            slot.headers[index >> 3] &= ~(1 << (index & 7));
+        // smallest size of a block in the free list, the inverse of mappingInsert
+        private static int mappingSize(int index) {
+            int fl = index >>> SL_INDEX_COUNT_LOG2;
+            int sl = index & (SL_INDEX_COUNT - 1);
+            if (fl == 0) {
+                return sl * (SMALL_BLOCK_SIZE / SL_INDEX_COUNT);
+            }
+            int log2 = fl + FL_INDEX_SHIFT - 1;
+            return (1 << log2) + (sl << (log2 - SL_INDEX_COUNT_LOG2));
         }
 
-        private void claim(MemorySlot slot, int index, int size) {
-            for (int i = 0; i < size;) {
-                int pointer = i + index;
-                if (((pointer & 7) == 0) && (size - i >= 8)) {
-                    // if we are on the first of 8 headers and there are more than 8 headers left, we can just claim the
-                    // entire byte
-                    slot.headers[pointer >> 3] = (byte) 255;
-                    i += 8;
-                } else {
-                    this.claim(slot, pointer);
-                    ++i;
+        private MemoryBlock findFreeBlock(int index) {
+            int fl = index >>> SL_INDEX_COUNT_LOG2;
+            int sl = index & (SL_INDEX_COUNT - 1);
+
+            int slMap = this.slBitmaps[fl] & (~0 << sl);
+            if (slMap == 0) {
+                // no list in this power of two is large enough, so take the smallest non-empty larger power of two
+                int flMap = this.flBitmap & (~0 << (fl + 1));
+                if (flMap == 0) {
+                    return null;
                 }
+
+                fl = Integer.numberOfTrailingZeros(flMap);
+                slMap = this.slBitmaps[fl];
             }
+
+            sl = Integer.numberOfTrailingZeros(slMap);
+            return this.freeLists[(fl << SL_INDEX_COUNT_LOG2) | sl];
         }
 
-        public void free(long heap, int pointer, int size) {
-            for (MemorySlot slot : this.slots) {
-                if (slot.heap == heap) {
-                    int cellMemorySize = MathUtils.ceilIntDivide(size, this.cellSize);
-                    int cellPointer = pointer / this.cellSize;
-                    for (int i = 0; i < cellMemorySize;) {
-                        int indexPointer = i + cellPointer;
-                        if (((indexPointer & 7) == 0) && (size - i >= 8)) {
-                            // if we are on the first of 8 headers and there are more than 8 headers left, we can just
-                            // unclaim the entire byte
-                            slot.headers[indexPointer >> 3] = 0;
-                            i += 8;
-                        } else {
-                            this.unclaim(slot, indexPointer);
-                            ++i;
-                        }
-                    }
-                    return;
+        private void insertFree(MemoryBlock block) {
+            int index = mappingInsert(block.size);
+            MemoryBlock head = this.freeLists[index];
+
+            block.free = true;
+            block.prevFree = null;
+            block.nextFree = head;
+            if (head != null) {
+                head.prevFree = block;
+            }
+            this.freeLists[index] = block;
+
+            int fl = index >>> SL_INDEX_COUNT_LOG2;
+            this.flBitmap |= 1 << fl;
+            this.slBitmaps[fl] |= 1 << (index & (SL_INDEX_COUNT - 1));
+        }
+
+        private void removeFree(MemoryBlock block) {
+            int index = mappingInsert(block.size);
+
+            if (block.prevFree != null) {
+                block.prevFree.nextFree = block.nextFree;
+            } else {
+                this.freeLists[index] = block.nextFree;
+            }
+            if (block.nextFree != null) {
+                block.nextFree.prevFree = block.prevFree;
+            }
+            block.prevFree = null;
+            block.nextFree = null;
+
+            if (this.freeLists[index] == null) {
+                int fl = index >>> SL_INDEX_COUNT_LOG2;
+                this.slBitmaps[fl] &= ~(1 << (index & (SL_INDEX_COUNT - 1)));
+                if (this.slBitmaps[fl] == 0) {
+                    this.flBitmap &= ~(1 << fl);
                 }
             }
-            throw new RuntimeException("Invalid heap");
         }
 
-        public AllocResult mallocAligned(int size, int alignment) {
-            int cellMemorySize = MathUtils.ceilIntDivide(size, this.cellSize);
-            // make sure no more than an entire slot's size is allocated
-            if (cellMemorySize >= this.heapCellSize) {
-                throw new RuntimeException("Attempted to allocate " + size + ", more than slot limit of " + (this.heapCellSize * this.cellSize));
+        // shrinks the block to the size, and returns a new block containing the rest of the memory
+        private static MemoryBlock split(MemoryBlock block, int size) {
+            MemoryBlock remaining = new MemoryBlock(block.slot, block.offset + size, block.size - size);
+
+            remaining.prevPhysical = block;
+            remaining.nextPhysical = block.nextPhysical;
+            if (block.nextPhysical != null) {
+                block.nextPhysical.prevPhysical = remaining;
             }
+            block.nextPhysical = remaining;
+            block.size = size;
 
-            for (MemorySlot slot : this.slots) {
-                for (int i = 0; i < this.heapCellSize; ++i) {
-                    // if all headers in a byte are claimed, we can ignore those 8 headers
-                    if ((i & 7) == 0 && (slot.headers[i >> 3] & 0xff) == 0xff) {
-                        i += 8;
-                        continue;
-                    }
+            return remaining;
+        }
 
-                    // check if there is even enough slots left in our search to fit the requested size
-                    if (i >= this.heapCellSize - cellMemorySize) {
-                        break;
-                    }
+        // absorbs the next block into the block
+        private static MemoryBlock merge(MemoryBlock block, MemoryBlock next) {
+            block.size += next.size;
+            block.nextPhysical = next.nextPhysical;
+            if (next.nextPhysical != null) {
+                next.nextPhysical.prevPhysical = block;
+            }
+            return block;
+        }
 
-                    // search for empty cells
-                    if (this.isEmpty(slot, i) && ((i * this.cellSize) % alignment == 0)) {
-                        boolean empty = true;
+        public synchronized void free(MemorySlot slot, int pointer) {
+            MemoryBlock block = slot.claimed.remove(pointer);
+            if (block == null) {
+                throw new RuntimeException("Invalid pointer");
+            }
+            slot.usedSize -= block.size;
+            this.usedSize -= block.size;
+            --this.allocationCount;
 
-                        for (int j = 1; j < cellMemorySize; ++j) {
-                            if (i + j >= this.heapCellSize) {
-                                break;
-                            }
+            if (slot.dedicated || (slot.locked && slot.claimed.isEmpty())) {
+                this.removeSlot(slot);
+                return;
+            }
 
-                            empty = this.isEmpty(slot, i + j);
+            if (slot.locked) {
+                // the free blocks of a locked slot are not in the free lists, so they are only merged
+                block.free = true;
+                if (block.prevPhysical != null && block.prevPhysical.free) {
+                    block = merge(block.prevPhysical, block);
+                }
+                if (block.nextPhysical != null && block.nextPhysical.free) {
+                    merge(block, block.nextPhysical);
+                }
+                return;
+            }
 
-                            if (!empty) {
-                                break;
-                            }
-                        }
+            // free blocks never neighbour each other, so merging with both neighbours is enough to keep it that way
+            MemoryBlock prev = block.prevPhysical;
+            if (prev != null && prev.free) {
+                this.removeFree(prev);
+                block = merge(prev, block);
+            }
+            MemoryBlock next = block.nextPhysical;
+            if (next != null && next.free) {
+                this.removeFree(next);
+                block = merge(block, next);
+            }
 
-                        if (empty) {
-                            this.claim(slot, i, cellMemorySize);
-                            return new AllocResult(slot.heap, i * this.cellSize);
-                        } else {
-                            i += cellMemorySize;
-                        }
-                    }
+            this.insertFree(block);
+        }
+
+        public synchronized void releaseEmptySlots() {
+            // backwards, so that slots can be removed while iterating
+            for (int i = this.slots.size() - 1; i >= 0; --i) {
+                MemorySlot slot = this.slots.get(i);
+                if (slot.usedSize != 0 || slot.locked || slot.dedicated) {
+                    slot.emptyFrames = 0;
+                    continue;
+                }
+
+                if (++slot.emptyFrames < PulsarSettings.EMPTY_SLOT_FRAMES ||
+                        this.memorySize - slot.size < PulsarSettings.MIN_MEMORY_RESERVE) {
+                    continue;
+                }
+
+                // an empty slot is a single free block, since free blocks are always merged
+                this.removeFree(slot.first);
+                this.removeSlot(slot);
+                // the memory type has shrunk, so it doesn't need to grow as fast anymore
+                this.nextSlotSize = Math.max(this.nextSlotSize / 2, PulsarSettings.MEMORY_SLOT_SIZE);
+                PulsarApplication.LOGGER.info("Released an empty memory slot! Memory type now has " +
+                        (this.getMemorySize() / 1048576) + " MB, " + this.slots.size() + " slots");
+            }
+        }
+
+        public synchronized void lockSlot(MemorySlot slot) {
+            if (slot.locked || slot.dedicated) {
+                return;
+            }
+
+            for (MemoryBlock block = slot.first; block != null; block = block.nextPhysical) {
+                if (block.free) {
+                    this.removeFree(block);
+                }
+            }
+            slot.locked = true;
+        }
+
+        public synchronized void unlockSlot(MemorySlot slot) {
+            if (!slot.locked) {
+                return;
+            }
+
+            slot.locked = false;
+            for (MemoryBlock block = slot.first; block != null; block = block.nextPhysical) {
+                if (block.free) {
+                    this.insertFree(block);
+                }
+            }
+        }
+
+        private static int getAlignedSize(int size) {
+            return AlignmentUtils.alignas(Math.max(size, 1), ALIGN_SIZE);
+        }
+
+        // blocks only start on multiples of ALIGN_SIZE, so bigger alignments need room to skip to an aligned offset
+        private static int getSearchSize(int alignedSize, int alignment) {
+            return alignment > ALIGN_SIZE ? alignedSize + alignment - ALIGN_SIZE : alignedSize;
+        }
+
+        public synchronized AllocResult tryMallocAligned(int size, int alignment) {
+            int alignedSize = getAlignedSize(size);
+            MemoryBlock block = this.findFreeBlock(mappingSearch(getSearchSize(alignedSize, alignment)));
+            if (block == null) {
+                return null;
+            }
+            return this.claim(block, alignedSize, alignment);
+        }
+
+        // returns null if the memory heap is out of memory
+        public synchronized AllocResult mallocAligned(int size, int alignment) {
+            int alignedSize = getAlignedSize(size);
+            int searchSize = getSearchSize(alignedSize, alignment);
+
+            // large allocations get their own memory, a dedicated slot is always aligned since it starts at 0
+            if (alignedSize >= PulsarSettings.DEDICATED_ALLOCATION_THRESHOLD) {
+                return this.mallocDedicated(alignedSize);
+            }
+
+            int index = mappingSearch(searchSize);
+            MemoryBlock block = this.findFreeBlock(index);
+
+            if (block == null) {
+                if (this.createSlot(searchSize) == null) {
+                    return null;
                 }
+                PulsarApplication.LOGGER.info("Had to create a new memory slot! Memory type now has " +
+                        (this.getMemorySize() / 1048576) + " MB, " + this.slots.size() + " slots");
+                block = this.findFreeBlock(index);
+            }
+
+            return this.claim(block, alignedSize, alignment);
+        }
+
+        // takes an aligned range of the size out of a free block
+        private AllocResult claim(MemoryBlock block, int alignedSize, int alignment) {
+            this.removeFree(block);
+
+            int padding = AlignmentUtils.alignas(block.offset, alignment) - block.offset;
+            if (padding != 0) {
+                // the block before a free block is always claimed, so the padding can go straight back as a free block
+                MemoryBlock aligned = split(block, padding);
+                this.insertFree(block);
+                block = aligned;
             }
 
-            if (this.slots.size() >= 4096) {
-                throw new RuntimeException("Reached cap of 4096 memory slots!");
+            if (block.size - alignedSize >= ALIGN_SIZE) {
+                this.insertFree(split(block, alignedSize));
             }
 
-            // if we have to create a new slot, it is guaranteed that the first header is empty
-            MemorySlot slot = this.createSlot();
-            this.claim(slot, 0, cellMemorySize);
-            PulsarApplication.LOGGER.info("Had to create a new memory slot! Memory type now has " +
-                    (this.getMemorySize() / 1048576) + " MB, " + this.slots.size() + " slots");
-            return new AllocResult(slot.heap, 0);
+            block.free = false;
+            block.slot.claimed.put(block.offset, block);
+            block.slot.usedSize += block.size;
+            this.usedSize += block.size;
+            ++this.allocationCount;
+            MemorySlot slot = block.slot;
+            return new AllocResult(this.memoryType, slot.heap, block.offset, slot.mapped == 0 ? 0 : slot.mapped + block.offset);
         }
     }
 }
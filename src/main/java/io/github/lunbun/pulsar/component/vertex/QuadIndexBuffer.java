@@ -0,0 +1,89 @@
+package io.github.lunbun.pulsar.component.vertex;
+
+import io.github.lunbun.pulsar.component.drawing.FrameSynchronizer;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.util.List;
+
+/**
+ * A device local index buffer that turns every 4 vertices into the 2 triangles of a quad, so quads can be drawn as an
+ * indexed triangle list without repeating vertices. It is shared by every vertex format, since the indices don't
+ * depend on the vertices, and grows when a draw needs more quads.
+ * The indices are 16 bit, so a single indexed draw can cover at most {@link #MAX_QUADS} quads; longer draws have to be
+ * split, moving the vertex offset forward by 4 vertices for every quad.
+ */
+public final class QuadIndexBuffer {
+    public static final int MAX_QUADS = 65536 / 4;
+    public static final int INDICES_PER_QUAD = 6;
+    private static final int INITIAL_QUADS = 256;
+
+    private final Buffer.Builder buffers;
+    public Buffer buffer;
+    private int quadCount;
+
+    // buffers that were replaced by a larger one, grouped by the frame they were replaced in, since frames in flight
+    // may still draw with them
+    private final List<List<Buffer>> retired;
+    private int retiredIndex;
+
+    public QuadIndexBuffer(Buffer.Builder buffers) {
+        this.buffers = buffers;
+        this.retired = new ObjectArrayList<>();
+        for (int i = 0; i < FrameSynchronizer.MAX_FRAMES_IN_FLIGHT + 1; ++i) {
+            this.retired.add(new ObjectArrayList<>());
+        }
+        this.retiredIndex = 0;
+        this.create(INITIAL_QUADS);
+    }
+
+    private void create(int quadCount) {
+        short[] indices = new short[quadCount * INDICES_PER_QUAD];
+        for (int quad = 0; quad < quadCount; ++quad) {
+            int vertex = quad * 4;
+            int index = quad * INDICES_PER_QUAD;
+            indices[index] = (short) vertex;
+            indices[index + 1] = (short) (vertex + 1);
+            indices[index + 2] = (short) (vertex + 2);
+            indices[index + 3] = (short) (vertex + 2);
+            indices[index + 4] = (short) (vertex + 3);
+            indices[index + 5] = (short) vertex;
+        }
+
+        this.buffer = this.buffers.createIndexBuffer(indices.length, true);
+        this.buffers.uploadIndices(this.buffer, indices);
+        this.quadCount = quadCount;
+    }
+
+    public void beginFrame(int currentFrame) {
+        this.retiredIndex = (this.retiredIndex + 1) % this.retired.size();
+        List<Buffer> retired = this.retired.get(this.retiredIndex);
+        for (Buffer buffer : retired) {
+            buffer.destroy();
+        }
+        retired.clear();
+    }
+
+    /**
+     * Makes sure that the buffer has indices for at least the given number of quads, or {@link #MAX_QUADS}. This has
+     * to be called before recording the frame that draws them, since growing uploads a new buffer.
+     */
+    public void ensureCapacity(int quadCount) {
+        quadCount = Math.min(quadCount, MAX_QUADS);
+        if (quadCount <= this.quadCount) {
+            return;
+        }
+
+        this.retired.get(this.retiredIndex).add(this.buffer);
+        this.create(Math.min(Math.max(this.quadCount * 2, quadCount), MAX_QUADS));
+    }
+
+    public void destroy() {
+        for (List<Buffer> retired : this.retired) {
+            for (Buffer buffer : retired) {
+                buffer.destroy();
+            }
+            retired.clear();
+        }
+        this.buffer.destroy();
+    }
+}
@@ -0,0 +1,244 @@
+package io.github.lunbun.pulsar.component.vertex;
+
+import io.github.lunbun.pulsar.component.setup.LogicalDevice;
+import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
+import io.github.lunbun.pulsar.struct.vertex.BufferData;
+import io.github.lunbun.pulsar.struct.vertex.MemoryUsage;
+import io.github.lunbun.pulsar.util.vulkan.BufferUtils;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VK10;
+
+import java.util.List;
+
+/**
+ * Hands out small buffers as fixed size ranges of larger, shared buffers.
+ * Each size class carves pages out of the {@link MemoryAllocator}, and every page is a single buffer, so a small
+ * allocation costs neither a vkCreateBuffer nor a free list search.
+ * A page that becomes empty is given back to the memory allocator, so that its memory slot can be released after a
+ * burst. Each size class keeps one empty page as a spare though, so that a class that allocates and frees around a
+ * page boundary doesn't keep creating and destroying pages.
+ * Every size class has its own lock, so it can be used from any thread.
+ */
+public final class SlabAllocator {
+    // every size class is a power of two, so the offset of an item is always aligned to its size
+    private static final int[] SIZE_CLASSES = { 64, 256, 1024, 4096 };
+    public static final int MAX_SLAB_SIZE = 4096;
+    private static final int PAGE_SIZE = 65536;
+
+    // slab buffers are shared by everything in a size class, so they need every usage a small buffer could have
+    private static final int SLAB_USAGE = VK10.VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK10.VK_BUFFER_USAGE_INDEX_BUFFER_BIT |
+            VK10.VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT | VK10.VK_BUFFER_USAGE_TRANSFER_SRC_BIT |
+            VK10.VK_BUFFER_USAGE_TRANSFER_DST_BIT;
+
+    private final LogicalDevice device;
+    private final PhysicalDevice physicalDevice;
+    private final MemoryAllocator allocator;
+    private final int uniformAlignment;
+
+    // size classes by the memory usage of their pages
+    private final SizeClass[][] pools;
+    // pages by their buffer handle, so frees can find the page of a buffer, guarded by its own lock
+    private final Long2ObjectOpenHashMap<Page> pages;
+
+    public SlabAllocator(LogicalDevice device, PhysicalDevice physicalDevice, MemoryAllocator allocator) {
+        this.device = device;
+        this.physicalDevice = physicalDevice;
+        this.allocator = allocator;
+        this.pools = new SizeClass[MemoryUsage.VALUES.length][SIZE_CLASSES.length];
+        for (MemoryUsage memoryUsage : MemoryUsage.VALUES) {
+            for (int i = 0; i < SIZE_CLASSES.length; ++i) {
+                this.pools[memoryUsage.ordinal()][i] = new SizeClass(SIZE_CLASSES[i], memoryUsage);
+            }
+        }
+        this.pages = new Long2ObjectOpenHashMap<>();
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            this.uniformAlignment = (int) physicalDevice.getLimits(stack).minUniformBufferOffsetAlignment();
+        }
+    }
+
+    private int getAlignment(int usage) {
+        return (usage & VK10.VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT) != 0 ? this.uniformAlignment : 1;
+    }
+
+    private static int getSizeClass(long size, int alignment) {
+        for (int i = 0; i < SIZE_CLASSES.length; ++i) {
+            if (SIZE_CLASSES[i] >= size && SIZE_CLASSES[i] >= alignment) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean canAllocate(long size, int usage) {
+        return ((usage & ~SLAB_USAGE) == 0) && (getSizeClass(size, this.getAlignment(usage)) != -1);
+    }
+
+    public BufferData allocate(long size, int usage, MemoryUsage memoryUsage, MemoryStack stack) {
+        int index = getSizeClass(size, this.getAlignment(usage));
+        if (index == -1) {
+            throw new RuntimeException("Attempted to allocate " + size + ", more than slab limit of " + MAX_SLAB_SIZE);
+        }
+
+        SizeClass sizeClass = this.pools[memoryUsage.ordinal()][index];
+        Page page;
+        int offset;
+        synchronized (sizeClass) {
+            if (sizeClass.available.isEmpty()) {
+                this.createPage(sizeClass, stack);
+            }
+
+            page = sizeClass.available.get(sizeClass.available.size() - 1);
+            if (page == sizeClass.spare) {
+                sizeClass.spare = null;
+            }
+            offset = page.claim() * sizeClass.itemSize;
+            if (page.isFull()) {
+                sizeClass.available.remove(sizeClass.available.size() - 1);
+            }
+        }
+
+        BufferData data = page.data;
+        return new BufferData(data.buffer, data.memoryType, data.memory, data.pointer + offset, size,
+                sizeClass.itemSize, offset, data.mapped == 0 ? 0 : data.mapped + offset);
+    }
+
+    private Page getPage(BufferData data) {
+        synchronized (this.pages) {
+            return this.pages.get(data.buffer);
+        }
+    }
+
+    public boolean contains(BufferData data) {
+        return this.getPage(data) != null;
+    }
+
+    /**
+     * Returns a buffer to its slab.
+     * @param data the buffer to free
+     * @return if the buffer was allocated from a slab, false if it owns its own buffer
+     */
+    public boolean free(BufferData data) {
+        Page page = this.getPage(data);
+        if (page == null) {
+            return false;
+        }
+
+        SizeClass sizeClass = page.sizeClass;
+        synchronized (sizeClass) {
+            if (page.isFull()) {
+                sizeClass.available.add(page);
+            }
+            page.unclaim((int) (data.offset / sizeClass.itemSize));
+            if (!page.isEmpty()) {
+                return true;
+            }
+
+            if (sizeClass.spare == null) {
+                sizeClass.spare = page;
+                return true;
+            }
+            sizeClass.pages.remove(page);
+            sizeClass.available.remove(page);
+        }
+
+        this.destroyPage(page);
+        return true;
+    }
+
+    private void destroyPage(Page page) {
+        // the page has to be forgotten first, otherwise destroying its buffer would free it into itself
+        synchronized (this.pages) {
+            this.pages.remove(page.data.buffer);
+        }
+        BufferUtils.destroy(this.device, this.allocator, page.data);
+    }
+
+    private void createPage(SizeClass sizeClass, MemoryStack stack) {
+        BufferData data = BufferUtils.createBuffer(this.device, this.physicalDevice, this.allocator, PAGE_SIZE,
+                SLAB_USAGE, sizeClass.memoryUsage, stack);
+        Page page = new Page(data, sizeClass);
+        sizeClass.pages.add(page);
+        sizeClass.available.add(page);
+        synchronized (this.pages) {
+            this.pages.put(data.buffer, page);
+        }
+    }
+
+    public void destroy() {
+        List<Page> pages;
+        synchronized (this.pages) {
+            pages = new ObjectArrayList<>(this.pages.values());
+            // the pages have to be forgotten first, otherwise destroying their buffers would free them into themselves
+            this.pages.clear();
+        }
+
+        for (Page page : pages) {
+            BufferUtils.destroy(this.device, this.allocator, page.data);
+        }
+        for (SizeClass[] sizeClasses : this.pools) {
+            for (SizeClass sizeClass : sizeClasses) {
+                synchronized (sizeClass) {
+                    sizeClass.pages.clear();
+                    sizeClass.available.clear();
+                    sizeClass.spare = null;
+                }
+            }
+        }
+    }
+
+    private static final class SizeClass {
+        public final int itemSize;
+        public final MemoryUsage memoryUsage;
+        public final List<Page> pages;
+        // pages with at least one free item
+        public final List<Page> available;
+        // the one empty page that is kept instead of destroyed, null if there is none
+        public Page spare;
+
+        public SizeClass(int itemSize, MemoryUsage memoryUsage) {
+            this.itemSize = itemSize;
+            this.memoryUsage = memoryUsage;
+            this.pages = new ObjectArrayList<>();
+            this.available = new ObjectArrayList<>();
+        }
+    }
+
+    private static final class Page {
+        public final BufferData data;
+        public final SizeClass sizeClass;
+        // stack of free item indices
+        private final int[] freeItems;
+        private int freeCount;
+
+        public Page(BufferData data, SizeClass sizeClass) {
+            this.data = data;
+            this.sizeClass = sizeClass;
+
+            int itemCount = PAGE_SIZE / sizeClass.itemSize;
+            this.freeItems = new int[itemCount];
+            for (int i = 0; i < itemCount; ++i) {
+                this.freeItems[i] = itemCount - 1 - i;
+            }
+            this.freeCount = itemCount;
+        }
+
+        public boolean isFull() {
+            return this.freeCount == 0;
+        }
+
+        public boolean isEmpty() {
+            return this.freeCount == this.freeItems.length;
+        }
+
+        public int claim() {
+            return this.freeItems[--this.freeCount];
+        }
+
+        public void unclaim(int item) {
+            this.freeItems[this.freeCount++] = item;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package io.github.lunbun.pulsar.component.vertex;
+
+import io.github.lunbun.pulsar.component.setup.LogicalDevice;
+import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
+import io.github.lunbun.pulsar.struct.vertex.BufferData;
+import io.github.lunbun.pulsar.struct.vertex.MemoryUsage;
+import io.github.lunbun.pulsar.util.vulkan.AlignmentUtils;
+import io.github.lunbun.pulsar.util.vulkan.BufferUtils;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VK10;
+
+/**
+ * A persistently mapped, host visible buffer that staging data is written into as a ring.
+ * Space is handed out at the head and given back at the tail, in the same order, once the copies reading it have
+ * finished. The head and tail count every byte ever allocated and released, so the ring holds head - tail bytes.
+ */
+public final class StagingRing {
+    private final LogicalDevice device;
+    private final MemoryAllocator allocator;
+
+    public final BufferData buffer;
+    public final long size;
+    private long head;
+    private long tail;
+
+    public StagingRing(LogicalDevice device, PhysicalDevice physicalDevice, MemoryAllocator allocator, long size) {
+        this.device = device;
+        this.allocator = allocator;
+        this.size = size;
+        this.head = 0;
+        this.tail = 0;
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            this.buffer = BufferUtils.createBuffer(device, physicalDevice, allocator, size,
+                    VK10.VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
+                    MemoryUsage.STREAM, stack);
+        }
+    }
+
+    /**
+     * Allocates a range of the ring.
+     * @return the offset of the range in the ring buffer, or -1 if the ring doesn't have enough free space
+     */
+    public long allocate(long size, int alignment) {
+        if (this.head == this.tail) {
+            // the ring is empty, so it can start over at the beginning of the buffer
+            this.head = (this.head + this.size - 1) / this.size * this.size;
+            this.tail = this.head;
+        }
+
+        long position = this.head % this.size;
+        long padding = AlignmentUtils.alignas(position, alignment) - position;
+        if (position + padding + size > this.size) {
+            // ranges can't wrap around, so the end of the buffer is skipped
+            padding = this.size - position;
+        }
+
+        if (this.head + padding + size - this.tail > this.size) {
+            return -1;
+        }
+
+        this.head += padding;
+        long offset = this.head % this.size;
+        this.head += size;
+        return offset;
+    }
+
+    public long getHead() {
+        return this.head;
+    }
+
+    /**
+     * Frees everything that was allocated before the head was at the given position.
+     */
+    public void release(long head) {
+        this.tail = Math.max(this.tail, head);
+    }
+
+    /**
+     * Gets a view of a range of the ring, like one returned by {@link #allocate(long, int)}.
+     */
+    public BufferData getRange(long offset, long size) {
+        return new BufferData(this.buffer.buffer, this.buffer.memoryType, this.buffer.memory,
+                this.buffer.pointer + (int) offset, size, (int) size, this.buffer.offset + offset,
+                this.buffer.mapped + offset);
+    }
+
+    public void destroy() {
+        BufferUtils.destroy(this.device, this.allocator, this.buffer);
+    }
+}
@@ -0,0 +1,179 @@
+package io.github.lunbun.pulsar.component.vertex;
+
+import io.github.lunbun.pulsar.component.drawing.FrameSynchronizer;
+import io.github.lunbun.pulsar.component.setup.LogicalDevice;
+import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
+import io.github.lunbun.pulsar.struct.vertex.BufferData;
+import io.github.lunbun.pulsar.struct.vertex.MemoryUsage;
+import io.github.lunbun.pulsar.util.PulsarSettings;
+import io.github.lunbun.pulsar.util.vulkan.BufferUtils;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A persistently mapped buffer that elements of a single size (like the vertices of one vertex format) are appended
+ * to every frame. Appended elements are handed out as ranges of the buffer, so that many draws can share one buffer
+ * binding, and appending costs a single copy into mapped memory.
+ * Elements appended after frame n begins can be used by frame n and by frame n + 1, so a region is only reused once the
+ * fence of frame n + 1 has signalled. This means there are {@link FrameSynchronizer#MAX_FRAMES_IN_FLIGHT} + 1 regions,
+ * and a new one is started every frame. A region that runs out of space is replaced with one twice as large, and keeps
+ * the old buffer alive until the region is used again. The stream has to be used from the render thread.
+ */
+public final class StreamBuffer {
+    private final LogicalDevice device;
+    private final PhysicalDevice physicalDevice;
+    private final MemoryAllocator allocator;
+    private final int usage;
+    public final int stride;
+
+    private final Region[] regions;
+    private Region region;
+    private int regionIndex;
+    // start of the range that is being appended to, in bytes
+    private long start;
+
+    public StreamBuffer(LogicalDevice device, PhysicalDevice physicalDevice, MemoryAllocator allocator, int usage,
+                        int stride) {
+        this.device = device;
+        this.physicalDevice = physicalDevice;
+        this.allocator = allocator;
+        this.usage = usage;
+        this.stride = stride;
+
+        this.regions = new Region[FrameSynchronizer.MAX_FRAMES_IN_FLIGHT + 1];
+        for (int i = 0; i < this.regions.length; ++i) {
+            this.regions[i] = new Region(this.createBuffer(PulsarSettings.STREAM_BUFFER_SIZE));
+        }
+        this.regionIndex = 0;
+        this.region = this.regions[0];
+        this.start = 0;
+    }
+
+    private BufferData createBuffer(long size) {
+        // the size is kept a multiple of the stride, so that every element fits in the buffer as a whole
+        size = Math.max(size / this.stride, 1) * this.stride;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            return BufferUtils.createBuffer(this.device, this.physicalDevice, this.allocator, size, this.usage,
+                    MemoryUsage.CPU_TO_GPU, stack);
+        }
+    }
+
+    /**
+     * Starts a new region, anything appended before that has to be finished.
+     */
+    public void beginFrame(int currentFrame) {
+        this.regionIndex = (this.regionIndex + 1) % this.regions.length;
+        this.region = this.regions[this.regionIndex];
+
+        for (BufferData buffer : this.region.retired) {
+            BufferUtils.destroy(this.device, this.allocator, buffer);
+        }
+        this.region.retired.clear();
+        this.region.head = 0;
+        this.start = 0;
+    }
+
+    private void ensureCapacity(long size) {
+        Region region = this.region;
+        if (region.head + size <= region.buffer.size) {
+            return;
+        }
+
+        // the range that is being appended to has to stay contiguous, so it is copied over to the new buffer
+        long pending = region.head - this.start;
+        BufferData buffer = this.createBuffer(Math.max(region.buffer.size * 2, pending + size));
+        MemoryUtil.memCopy(region.buffer.mapped + this.start, buffer.mapped, pending);
+        BufferUtils.markWritten(this.allocator, buffer, 0, pending);
+
+        region.retired.add(region.buffer);
+        region.buffer = buffer;
+        region.head = pending;
+        this.start = 0;
+    }
+
+    /**
+     * Copies bytes of native memory to the end of the current range
+     * @param address the address of the bytes
+     * @param size the number of bytes, which should be a multiple of the stride
+     */
+    public void append(long address, long size) {
+        MemoryUtil.memCopy(address, this.reserve(size), size);
+    }
+
+    /**
+     * Adds bytes to the end of the current range, for elements that are written in place
+     * @return the mapped address of the bytes, which is only valid until the next append or reserve
+     */
+    public long reserve(long size) {
+        this.ensureCapacity(size);
+
+        Region region = this.region;
+        long address = region.buffer.mapped + region.head;
+        BufferUtils.markWritten(this.allocator, region.buffer, region.head, size);
+        region.head += size;
+        return address;
+    }
+
+    /**
+     * Appends the remaining bytes of a direct buffer to the current range, without changing its position.
+     */
+    public void append(ByteBuffer data) {
+        if (!data.isDirect()) {
+            throw new RuntimeException("Stream data has to be in a direct buffer!");
+        }
+        this.append(MemoryUtil.memAddress(data), data.remaining());
+    }
+
+    /**
+     * Ends the current range and starts a new one.
+     * @return the elements appended since the last call, which are valid until the frame after the current one has
+     * finished
+     */
+    public Range finish() {
+        Region region = this.region;
+        Range range = new Range(region.buffer, (int) (this.start / this.stride),
+                (int) ((region.head - this.start) / this.stride));
+        this.start = region.head;
+        return range;
+    }
+
+    public void destroy() {
+        for (Region region : this.regions) {
+            for (BufferData buffer : region.retired) {
+                BufferUtils.destroy(this.device, this.allocator, buffer);
+            }
+            region.retired.clear();
+            BufferUtils.destroy(this.device, this.allocator, region.buffer);
+        }
+    }
+
+    public static final class Range {
+        // the buffer is shared with the other ranges of the frame, so it must not be destroyed
+        public final BufferData buffer;
+        public final int first;
+        public final int count;
+
+        public Range(BufferData buffer, int first, int count) {
+            this.buffer = buffer;
+            this.first = first;
+            this.count = count;
+        }
+    }
+
+    private static final class Region {
+        public BufferData buffer;
+        // buffers that were replaced by a larger one, but may still be used by the ranges of the region
+        public final List<BufferData> retired;
+        public long head;
+
+        public Region(BufferData buffer) {
+            this.buffer = buffer;
+            this.retired = new ObjectArrayList<>();
+            this.head = 0;
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package io.github.lunbun.pulsar.component.vertex;
+
+import io.github.lunbun.pulsar.component.drawing.BlockingTimer;
+import io.github.lunbun.pulsar.component.drawing.CommandBuffer;
+import io.github.lunbun.pulsar.component.drawing.CommandPool;
+import io.github.lunbun.pulsar.component.setup.LogicalDevice;
+import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
+import io.github.lunbun.pulsar.component.setup.QueueManager;
+import io.github.lunbun.pulsar.struct.setup.QueueFamily;
+import io.github.lunbun.pulsar.struct.texture.ImageData;
+import io.github.lunbun.pulsar.struct.vertex.BufferData;
+import io.github.lunbun.pulsar.struct.vertex.MemoryUsage;
+import io.github.lunbun.pulsar.util.PulsarSettings;
+import io.github.lunbun.pulsar.util.misc.MathUtils;
+import io.github.lunbun.pulsar.util.vulkan.BufferUtils;
+import io.github.lunbun.pulsar.util.vulkan.ImageUtils;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Collects staged uploads into one command buffer, which is submitted once per frame without waiting for it.
+ * Staging data is written into a {@link StagingRing}, and the ring space of a batch is only given back once the fence
+ * of its submission has signalled. Uploads larger than the ring get a temporary staging buffer, which is destroyed
+ * along with the batch. The ring only has to be waited on if it runs out of space.
+ * If the device has a dedicated transfer queue, the copies run on it alongside rendering. Every uploaded buffer and
+ * image is then released to the graphics queue family at the end of the batch, and acquired by a small command buffer
+ * on the graphics queue that waits for the copies through a semaphore.
+ * Uploads are submitted at the beginning of the next frame, so they have to be made before the frame that uses them
+ * starts recording.
+ * Uploads can be made from any thread. Vulkan queues have to be synchronized externally, and the transfer queue is
+ * usually the graphics queue itself, so only the render thread submits: {@link #submit()} and {@link #flush()} must only
+ * be called from it. Other threads only record into the command pools of the queue, which nothing else uses, and wait
+ * on fences. A worker that needs a batch submitted early (because it writes a buffer twice or the ring is full) closes
+ * the batch for the render thread to submit, and blocks until the ring has space again if it has to.
+ */
+public final class UploadQueue {
+    // image copies need the buffer offset to be a multiple of the texel size
+    private static final int STAGING_ALIGNMENT = 16;
+    // stages that can use uploaded data, including copies of the defragmenter
+    static final int CONSUMER_STAGES = VK10.VK_PIPELINE_STAGE_TRANSFER_BIT |
+            VK10.VK_PIPELINE_STAGE_VERTEX_INPUT_BIT | VK10.VK_PIPELINE_STAGE_VERTEX_SHADER_BIT |
+            VK10.VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT;
+    static final int BUFFER_CONSUMER_ACCESS = VK10.VK_ACCESS_TRANSFER_READ_BIT |
+            VK10.VK_ACCESS_TRANSFER_WRITE_BIT | VK10.VK_ACCESS_INDEX_READ_BIT |
+            VK10.VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT | VK10.VK_ACCESS_UNIFORM_READ_BIT;
+
+    private final LogicalDevice device;
+    private final PhysicalDevice physicalDevice;
+    private final MemoryAllocator allocator;
+    private final CommandPool transferPool;
+    private final CommandPool graphicsPool;
+    private final QueueManager queues;
+    private final BlockingTimer.Builder timings;
+    private final StagingRing ring;
+
+    // the queue the copies are submitted to
+    private final QueueFamily transferFamily;
+    // if the copies run on a different queue family than rendering, so ownership has to be transferred
+    private final boolean transferOwnership;
+
+    // the thread that submits, which is the thread the queue was created on
+    private final Thread renderThread;
+    // batches that have been closed by workers but not submitted yet, oldest first
+    private final List<Batch> closed;
+    // submitted batches, oldest first
+    private final List<Batch> batches;
+    // fences and semaphores of finished batches, which can be used again
+    private final List<BlockingTimer> fences;
+    private final List<BlockingTimer> semaphores;
+    private Batch pending;
+
+    /**
+     * @param transferPool the command pool of the transfer queue, or the graphics command pool if there is none
+     * @param graphicsPool a command pool of the graphics queue that only the upload queue uses
+     */
+    public UploadQueue(LogicalDevice device, PhysicalDevice physicalDevice, MemoryAllocator allocator,
+                       CommandPool transferPool, CommandPool graphicsPool, QueueManager queues,
+                       BlockingTimer.Builder timings) {
+        this.device = device;
+        this.physicalDevice = physicalDevice;
+        this.allocator = allocator;
+        this.transferPool = transferPool;
+        this.graphicsPool = graphicsPool;
+        this.queues = queues;
+        this.timings = timings;
+        this.ring = new StagingRing(device, physicalDevice, allocator, PulsarSettings.STAGING_RING_SIZE);
+
+        this.transferFamily = queues.hasQueue(QueueFamily.TRANSFER) ? QueueFamily.TRANSFER : QueueFamily.GRAPHICS;
+        this.transferOwnership = queues.getFamilyIndex(this.transferFamily) !=
+                queues.getFamilyIndex(QueueFamily.GRAPHICS);
+
+        this.renderThread = Thread.currentThread();
+        this.closed = new ObjectArrayList<>();
+        this.batches = new ObjectArrayList<>();
+        this.fences = new ObjectArrayList<>();
+        this.semaphores = new ObjectArrayList<>();
+        this.pending = null;
+    }
+
+    private Batch getPending() {
+        if (this.pending == null) {
+            CommandBuffer commandBuffer = this.transferPool.allocateBuffer();
+            commandBuffer.startRecordingOneTimeSubmit();
+            this.pending = new Batch(commandBuffer);
+        }
+        return this.pending;
+    }
+
+    private BufferData allocateStaging(long size) {
+        if (size > this.ring.size) {
+            try (MemoryStack stack = MemoryStack.stackPush()) {
+                BufferData staging = BufferUtils.createBuffer(this.device, this.physicalDevice, this.allocator, size,
+                        VK10.VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
+                        MemoryUsage.STREAM, stack);
+                this.getPending().temporary.add(staging);
+                return staging;
+            }
+        }
+
+        long offset;
+        while ((offset = this.ring.allocate(size, STAGING_ALIGNMENT)) == -1) {
+            // the ring is full, so the oldest batch is waited on, and the pending copies are submitted early if
+            // nothing has been submitted
+            if (!this.batches.isEmpty()) {
+                this.waitOldest();
+            } else if (Thread.currentThread() == this.renderThread) {
+                this.submit();
+            } else {
+                this.closePending();
+                try {
+                    // woken up once the render thread has submitted
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for staging memory!", e);
+                }
+            }
+        }
+        return this.ring.getRange(offset, size);
+    }
+
+    public synchronized void uploadBuffer(BufferData buffer, Consumer<ByteBuffer> bufferWriter) {
+        // copies of a batch are recorded in any order, so a buffer that is written twice starts a new batch, which is
+        // ordered after the first one. This has to happen before the staging memory is allocated, since submitting
+        // gives away the ring space of the batch.
+        if (this.pending != null && this.pending.overlaps(buffer)) {
+            this.closePending();
+        }
+
+        BufferData staging = this.allocateStaging(buffer.size);
+        bufferWriter.accept(BufferUtils.getMappedBuffer(staging));
+        BufferUtils.markWritten(this.allocator, staging, 0, staging.size);
+
+        Batch batch = this.getPending();
+        BufferUtils.batchCopyBuffer(staging, buffer, (int) buffer.size, batch.commandBuffer);
+        // the whole buffer is written, so it doesn't have to be acquired from the graphics queue family first
+        batch.buffers.add(new BufferRange(buffer.buffer, buffer.offset, buffer.size));
+    }
+
+    public synchronized void uploadImage(ImageData image, int format, int x, int y, int width, int height,
+                                         ByteBuffer pixels) {
+        // the regions of an image in a batch become one copy, whose regions have no order, so an image region that is
+        // written twice starts a new batch like a buffer does
+        if (this.pending != null && this.pending.overlaps(image, x, y, width, height)) {
+            this.closePending();
+        }
+
+        BufferData staging = this.allocateStaging(pixels.remaining());
+        ByteBuffer bufferCopy = BufferUtils.getMappedBuffer(staging);
+        bufferCopy.put(pixels);
+        pixels.rewind();
+        BufferUtils.markWritten(this.allocator, staging, 0, staging.size);
+
+        // the image stays in the transfer layout until the end of the batch, so later regions of the same image in
+        // the batch are copied without another transition. The copies are only recorded at the end of the batch, so
+        // the transition is always before them. An image that was uploaded to by an earlier batch keeps its contents,
+        // unless the copies run on a transfer queue, which neither owns the image nor has the stages that sampled it.
+        Batch batch = this.getPending();
+        if (!batch.images.contains(image)) {
+            int oldLayout = this.transferOwnership ? VK10.VK_IMAGE_LAYOUT_UNDEFINED : image.layout;
+            ImageUtils.transitionImageLayout(image.buffer, format, oldLayout,
+                    VK10.VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, batch.commandBuffer);
+            batch.images.add(image);
+            // batches are submitted in the order they were recorded, and each one ends with the image readable
+            image.layout = VK10.VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL;
+        }
+        ImageUtils.batchCopyBufferToImage(staging.buffer, staging.offset, image.buffer, x, y, width, height,
+                batch.commandBuffer);
+        batch.imageRegions.add(new ImageRegion(image.buffer, x, y, width, height));
+    }
+
+    /**
+     * Checks if an upload to a buffer has been recorded but not submitted yet, in which case the buffer can't be
+     * copied anywhere until the next submit.
+     */
+    public synchronized boolean isPending(BufferData buffer) {
+        if (this.pending != null && this.pending.overlaps(buffer)) {
+            return true;
+        }
+        for (Batch batch : this.closed) {
+            if (batch.overlaps(buffer)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ends the pending batch, so that the next upload starts a new one. It is submitted with the next submit.
+    private void closePending() {
+        if (this.pending == null) {
+            return;
+        }
+        this.pending.ringHead = this.ring.getHead();
+        this.closed.add(this.pending);
+        this.pending = null;
+    }
+
+    /**
+     * Submits the pending uploads, and gives back the staging memory of batches that have finished. This doesn't wait
+     * for anything, and must only be called from the render thread.
+     */
+    public synchronized void submit() {
+        if (Thread.currentThread() != this.renderThread) {
+            throw new RuntimeException("Uploads can only be submitted from the render thread!");
+        }
+
+        while (!this.batches.isEmpty() &&
+                VK10.vkGetFenceStatus(this.device.device, this.batches.get(0).fence.handle) == VK10.VK_SUCCESS) {
+            this.finish(this.batches.remove(0));
+        }
+
+        this.closePending();
+        for (Batch batch : this.closed) {
+            this.submit(batch);
+        }
+        this.closed.clear();
+        // workers waiting for the ring can wait on the fences of the batches now
+        this.notifyAll();
+    }
+
+    private void submit(Batch batch) {
+        batch.fence = this.fences.isEmpty() ? this.timings.createTiming(BlockingTimer.Type.FENCE) :
+                this.fences.remove(this.fences.size() - 1);
+        VK10.vkResetFences(this.device.device, batch.fence.handle);
+
+        batch.commandBuffer.flushCopies();
+        // the staging writes have to be visible to the device before the copies run
+        this.allocator.flushMappedRanges();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            if (this.transferOwnership) {
+                this.submitWithOwnershipTransfer(batch, stack);
+            } else {
+                // anything submitted afterwards, like the frame or another copy, has to wait for the copies to finish
+                VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.callocStack(1, stack);
+                barrier.sType(VK10.VK_STRUCTURE_TYPE_MEMORY_BARRIER);
+                barrier.srcAccessMask(VK10.VK_ACCESS_TRANSFER_WRITE_BIT);
+                barrier.dstAccessMask(BUFFER_CONSUMER_ACCESS);
+
+                VkImageMemoryBarrier.Buffer imageBarriers = this.createImageBarriers(batch,
+                        VK10.VK_QUEUE_FAMILY_IGNORED, VK10.VK_QUEUE_FAMILY_IGNORED, stack);
+                setAccess(null, imageBarriers, VK10.VK_ACCESS_TRANSFER_WRITE_BIT, 0, VK10.VK_ACCESS_SHADER_READ_BIT);
+                batch.commandBuffer.pipelineBarrier(VK10.VK_PIPELINE_STAGE_TRANSFER_BIT, CONSUMER_STAGES, barrier,
+                        null, imageBarriers);
+                batch.commandBuffer.endRecording();
+
+                this.submit(this.transferFamily, batch.commandBuffer, null, null, batch.fence, stack);
+            }
+        }
+        this.batches.add(batch);
+    }
+
+    private void submitWithOwnershipTransfer(Batch batch, MemoryStack stack) {
+        int transferIndex = this.queues.getFamilyIndex(this.transferFamily);
+        int graphicsIndex = this.queues.getFamilyIndex(QueueFamily.GRAPHICS);
+
+        VkBufferMemoryBarrier.Buffer bufferBarriers = null;
+        if (!batch.buffers.isEmpty()) {
+            bufferBarriers = VkBufferMemoryBarrier.callocStack(batch.buffers.size(), stack);
+            for (int i = 0; i < batch.buffers.size(); ++i) {
+                BufferRange range = batch.buffers.get(i);
+                VkBufferMemoryBarrier barrier = bufferBarriers.get(i);
+                barrier.sType(VK10.VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER);
+                barrier.srcQueueFamilyIndex(transferIndex);
+                barrier.dstQueueFamilyIndex(graphicsIndex);
+                barrier.buffer(range.buffer);
+                barrier.offset(range.offset);
+                barrier.size(range.size);
+            }
+        }
+
+        VkImageMemoryBarrier.Buffer imageBarriers = this.createImageBarriers(batch, transferIndex, graphicsIndex,
+                stack);
+
+        // the release only makes the copies available, the acquire on the graphics queue makes them visible
+        setAccess(bufferBarriers, imageBarriers, VK10.VK_ACCESS_TRANSFER_WRITE_BIT, 0, 0);
+        batch.commandBuffer.pipelineBarrier(VK10.VK_PIPELINE_STAGE_TRANSFER_BIT,
+                VK10.VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, null, bufferBarriers, imageBarriers);
+        batch.commandBuffer.endRecording();
+
+        batch.semaphore = this.semaphores.isEmpty() ? this.timings.createTiming(BlockingTimer.Type.SEMAPHORE) :
+                this.semaphores.remove(this.semaphores.size() - 1);
+        this.submit(this.transferFamily, batch.commandBuffer, null, batch.semaphore, null, stack);
+
+        batch.acquireBuffer = this.graphicsPool.allocateBuffer();
+        batch.acquireBuffer.startRecordingOneTimeSubmit();
+        setAccess(bufferBarriers, imageBarriers, 0, BUFFER_CONSUMER_ACCESS, VK10.VK_ACCESS_SHADER_READ_BIT);
+        batch.acquireBuffer.pipelineBarrier(CONSUMER_STAGES, CONSUMER_STAGES, null, bufferBarriers, imageBarriers);
+        batch.acquireBuffer.endRecording();
+
+        this.submit(QueueFamily.GRAPHICS, batch.acquireBuffer, batch.semaphore, null, batch.fence, stack);
+    }
+
+    // moves every image of the batch into the layout for sampling
+    private VkImageMemoryBarrier.Buffer createImageBarriers(Batch batch, int srcFamily, int dstFamily,
+                                                            MemoryStack stack) {
+        if (batch.images.isEmpty()) {
+            return null;
+        }
+
+        VkImageMemoryBarrier.Buffer imageBarriers = VkImageMemoryBarrier.callocStack(batch.images.size(), stack);
+        for (int i = 0; i < batch.images.size(); ++i) {
+            VkImageMemoryBarrier barrier = imageBarriers.get(i);
+            barrier.sType(VK10.VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER);
+            barrier.oldLayout(VK10.VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL);
+            barrier.newLayout(VK10.VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+            barrier.srcQueueFamilyIndex(srcFamily);
+            barrier.dstQueueFamilyIndex(dstFamily);
+            barrier.image(batch.images.get(i).buffer);
+            barrier.subresourceRange()
+                    .aspectMask(VK10.VK_IMAGE_ASPECT_COLOR_BIT)
+                    .baseMipLevel(0)
+                    .levelCount(1)
+                    .baseArrayLayer(0)
+                    .layerCount(1);
+        }
+        return imageBarriers;
+    }
+
+    private static void setAccess(VkBufferMemoryBarrier.Buffer bufferBarriers,
+                                  VkImageMemoryBarrier.Buffer imageBarriers, int srcAccess, int bufferDstAccess,
+                                  int imageDstAccess) {
+        if (bufferBarriers != null) {
+            for (VkBufferMemoryBarrier barrier : bufferBarriers) {
+                barrier.srcAccessMask(srcAccess);
+                barrier.dstAccessMask(bufferDstAccess);
+            }
+        }
+        if (imageBarriers != null) {
+            for (VkImageMemoryBarrier barrier : imageBarriers) {
+                barrier.srcAccessMask(srcAccess);
+                barrier.dstAccessMask(imageDstAccess);
+            }
+        }
+    }
+
+    private void submit(QueueFamily family, CommandBuffer commandBuffer, BlockingTimer wait, BlockingTimer signal,
+                        BlockingTimer fence, MemoryStack stack) {
+        VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack);
+        submitInfo.sType(VK10.VK_STRUCTURE_TYPE_SUBMIT_INFO);
+        submitInfo.pCommandBuffers(stack.pointers(commandBuffer.buffer));
+        if (wait != null) {
+            submitInfo.waitSemaphoreCount(1);
+            submitInfo.pWaitSemaphores(stack.longs(wait.handle));
+            submitInfo.pWaitDstStageMask(stack.ints(CONSUMER_STAGES));
+        }
+        if (signal != null) {
+            submitInfo.pSignalSemaphores(stack.longs(signal.handle));
+        }
+
+        long fenceHandle = fence == null ? VK10.VK_NULL_HANDLE : fence.handle;
+        if (VK10.vkQueueSubmit(this.queues.getQueue(family), submitInfo, fenceHandle) != VK10.VK_SUCCESS) {
+            throw new RuntimeException("Failed to submit upload command buffer!");
+        }
+    }
+
+    private void waitOldest() {
+        Batch batch = this.batches.remove(0);
+        VK10.vkWaitForFences(this.device.device, batch.fence.handle, true, MathUtils.UINT64_MAX);
+        this.finish(batch);
+    }
+
+    private void finish(Batch batch) {
+        this.transferPool.freeBuffer(batch.commandBuffer);
+        if (batch.acquireBuffer != null) {
+            this.graphicsPool.freeBuffer(batch.acquireBuffer);
+        }
+        for (BufferData staging : batch.temporary) {
+            BufferUtils.destroy(this.device, this.allocator, staging);
+        }
+        this.ring.release(batch.ringHead);
+        this.fences.add(batch.fence);
+        if (batch.semaphore != null) {
+            this.semaphores.add(batch.semaphore);
+        }
+    }
+
+    /**
+     * Submits the pending uploads and waits until every upload has finished, from the render thread.
+     */
+    public synchronized void flush() {
+        this.submit();
+        while (!this.batches.isEmpty()) {
+            this.waitOldest();
+        }
+    }
+
+    public synchronized void destroy() {
+        this.flush();
+        this.ring.destroy();
+    }
+
+    private static final class BufferRange {
+        public final long buffer;
+        public final long offset;
+        public final long size;
+
+        public BufferRange(long buffer, long offset, long size) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private static final class ImageRegion {
+        public final long image;
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+
+        public ImageRegion(long image, int x, int y, int width, int height) {
+            this.image = image;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private static final class Batch {
+        public final CommandBuffer commandBuffer;
+        // staging buffers of uploads that didn't fit into the ring
+        public final List<BufferData> temporary;
+        // everything written by the batch, which is released to the graphics queue family at the end
+        public final List<BufferRange> buffers;
+        // images are also moved out of the transfer layout at the end
+        public final List<ImageData> images;
+        public final List<ImageRegion> imageRegions;
+        // head of the ring when the batch was submitted, everything before it can be freed once the fence signals
+        public long ringHead;
+        public BlockingTimer fence;
+        // only used with ownership transfers, signalled by the copies and waited on by the acquire
+        public BlockingTimer semaphore;
+        public CommandBuffer acquireBuffer;
+
+        public Batch(CommandBuffer commandBuffer) {
+            this.commandBuffer = commandBuffer;
+            this.temporary = new ObjectArrayList<>();
+            this.buffers = new ObjectArrayList<>();
+            this.images = new ObjectArrayList<>();
+            this.imageRegions = new ObjectArrayList<>();
+        }
+
+        public boolean overlaps(BufferData buffer) {
+            for (BufferRange range : this.buffers) {
+                if (range.buffer == buffer.buffer && range.offset < buffer.offset + buffer.size &&
+                        buffer.offset < range.offset + range.size) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean overlaps(ImageData image, int x, int y, int width, int height) {
+            for (ImageRegion region : this.imageRegions) {
+                if (region.image == image.buffer && region.x < x + width && x < region.x + region.width &&
+                        region.y < y + height && y < region.y + region.height) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
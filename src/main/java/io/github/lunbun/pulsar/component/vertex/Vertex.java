@@ -13,10 +13,12 @@ import java.util.List;
 public final class Vertex {
     private final Object[] values;
     private final List<VertexData> data;
+    private final int size;
 
-    protected Vertex(List<VertexData> data) {
+    protected Vertex(List<VertexData> data, int size) {
         this.values = new Object[data.size()];
         this.data = data;
+        this.size = size;
     }
 
     public void set(int index, Object value) {
@@ -27,9 +29,14 @@ public final class Vertex {
     }
 
     public void write(ByteBuffer buffer) {
+        // attributes are written at their offsets, so padding between them is skipped
+        int start = buffer.position();
         for (int i = 0; i < this.values.length; ++i) {
-            this.data.get(i).type.writer.accept(buffer, this.values[i]);
+            VertexData data = this.data.get(i);
+            buffer.position(start + data.offset);
+            data.type.writer.accept(buffer, this.values[i]);
         }
+        buffer.position(start + this.size);
     }
 
     public static final class VertexData {
@@ -67,9 +74,19 @@ public final class Vertex {
             this.offset += vertexType.size;
         }
 
+        /**
+         * Skips over bytes of the vertex that no attribute reads
+         */
+        public void padding(int bytes) {
+            if (this.immutable) {
+                throw new RuntimeException("Vertex builder is immutable! Once a vertex has been created, attributes cannot be added.");
+            }
+            this.offset += bytes;
+        }
+
         public Vertex createVertex() {
             this.immutable = true;
-            return new Vertex(this.data);
+            return new Vertex(this.data, this.offset);
         }
 
         public Vertex createVertex(Object... values) {
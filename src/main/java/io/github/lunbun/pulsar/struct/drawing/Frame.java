@@ -11,12 +11,16 @@ public class Frame {
     public final BlockingTimer imageAvailable;
     public final BlockingTimer renderFinished;
     public final BlockingTimer fence;
+    // transient pool of the frame, which is reset as a whole once the fence has signalled
+    public final CommandPool commandPool;
+    // allocated once, and reused every time the pool is reset
     public CommandBuffer commandBuffer;
 
     public Frame(BlockingTimer imageAvailable, BlockingTimer renderFinished, BlockingTimer fence, CommandPool commandPool) {
         this.imageAvailable = imageAvailable;
         this.renderFinished = renderFinished;
         this.fence = fence;
+        this.commandPool = commandPool;
     }
 
     public LongBuffer pImageAvailableSemaphore() {
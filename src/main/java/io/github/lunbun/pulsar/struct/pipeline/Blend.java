@@ -37,7 +37,20 @@ public final class Blend {
         SRC_ALPHA(VK10.VK_BLEND_FACTOR_SRC_ALPHA),
         ONE_MINUS_SRC_ALPHA(VK10.VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA),
         ZERO(VK10.VK_BLEND_FACTOR_ZERO),
-        ONE(VK10.VK_BLEND_FACTOR_ONE);
+        ONE(VK10.VK_BLEND_FACTOR_ONE),
+        SRC_COLOR(VK10.VK_BLEND_FACTOR_SRC_COLOR),
+        ONE_MINUS_SRC_COLOR(VK10.VK_BLEND_FACTOR_ONE_MINUS_SRC_COLOR),
+        DST_COLOR(VK10.VK_BLEND_FACTOR_DST_COLOR),
+        ONE_MINUS_DST_COLOR(VK10.VK_BLEND_FACTOR_ONE_MINUS_DST_COLOR),
+        DST_ALPHA(VK10.VK_BLEND_FACTOR_DST_ALPHA),
+        ONE_MINUS_DST_ALPHA(VK10.VK_BLEND_FACTOR_ONE_MINUS_DST_ALPHA),
+        CONSTANT_COLOR(VK10.VK_BLEND_FACTOR_CONSTANT_COLOR),
+        ONE_MINUS_CONSTANT_COLOR(VK10.VK_BLEND_FACTOR_ONE_MINUS_CONSTANT_COLOR),
+        CONSTANT_ALPHA(VK10.VK_BLEND_FACTOR_CONSTANT_ALPHA),
+        ONE_MINUS_CONSTANT_ALPHA(VK10.VK_BLEND_FACTOR_ONE_MINUS_CONSTANT_ALPHA),
+        SRC_ALPHA_SATURATE(VK10.VK_BLEND_FACTOR_SRC_ALPHA_SATURATE);
+
+        public static final Factor[] VALUES = Factor.values();
 
         public final int vk;
 
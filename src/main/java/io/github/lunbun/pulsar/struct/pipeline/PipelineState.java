@@ -0,0 +1,73 @@
+package io.github.lunbun.pulsar.struct.pipeline;
+
+import org.lwjgl.vulkan.VK10;
+
+/**
+ * The fixed function state baked into a pipeline.
+ * Depth state only has an effect on render passes with a depth attachment.
+ */
+public final class PipelineState {
+    // null if blending is disabled
+    public final Blend blend;
+    public final boolean cullBackFaces;
+    public final boolean depthTest;
+    public final boolean depthWrite;
+    public final CompareOperator depthCompareOp;
+    public final Topology topology;
+
+    public PipelineState(Blend blend, boolean cullBackFaces, boolean depthTest, boolean depthWrite,
+                         CompareOperator depthCompareOp, Topology topology) {
+        this.blend = blend;
+        this.cullBackFaces = cullBackFaces;
+        this.depthTest = depthTest;
+        this.depthWrite = depthWrite;
+        this.depthCompareOp = depthCompareOp;
+        this.topology = topology;
+    }
+
+    public PipelineState(Blend blend, boolean cullBackFaces, boolean depthTest, boolean depthWrite,
+                         CompareOperator depthCompareOp) {
+        this(blend, cullBackFaces, depthTest, depthWrite, depthCompareOp, Topology.TRIANGLE_LIST);
+    }
+
+    /**
+     * Blending only, without culling or depth testing
+     */
+    public PipelineState(Blend blend) {
+        this(blend, false, false, false, CompareOperator.LESS);
+    }
+
+    // only lists, since draws of a list can be merged into one draw
+    public enum Topology {
+        TRIANGLE_LIST(VK10.VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST),
+        LINE_LIST(VK10.VK_PRIMITIVE_TOPOLOGY_LINE_LIST);
+
+        public static final Topology[] VALUES = Topology.values();
+
+        public final int vk;
+
+        Topology(int vk) {
+            this.vk = vk;
+        }
+    }
+
+    // in the same order as both the vulkan and opengl compare operators
+    public enum CompareOperator {
+        NEVER(VK10.VK_COMPARE_OP_NEVER),
+        LESS(VK10.VK_COMPARE_OP_LESS),
+        EQUAL(VK10.VK_COMPARE_OP_EQUAL),
+        LESS_OR_EQUAL(VK10.VK_COMPARE_OP_LESS_OR_EQUAL),
+        GREATER(VK10.VK_COMPARE_OP_GREATER),
+        NOT_EQUAL(VK10.VK_COMPARE_OP_NOT_EQUAL),
+        GREATER_OR_EQUAL(VK10.VK_COMPARE_OP_GREATER_OR_EQUAL),
+        ALWAYS(VK10.VK_COMPARE_OP_ALWAYS);
+
+        public static final CompareOperator[] VALUES = CompareOperator.values();
+
+        public final int vk;
+
+        CompareOperator(int vk) {
+            this.vk = vk;
+        }
+    }
+}
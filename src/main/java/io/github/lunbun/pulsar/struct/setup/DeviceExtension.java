@@ -1,9 +1,11 @@
 package io.github.lunbun.pulsar.struct.setup;
 
+import org.lwjgl.vulkan.EXTMemoryBudget;
 import org.lwjgl.vulkan.KHRSwapchain;
 
 public enum DeviceExtension {
-    SWAP_CHAIN(KHRSwapchain.VK_KHR_SWAPCHAIN_EXTENSION_NAME);
+    SWAP_CHAIN(KHRSwapchain.VK_KHR_SWAPCHAIN_EXTENSION_NAME),
+    MEMORY_BUDGET(EXTMemoryBudget.VK_EXT_MEMORY_BUDGET_EXTENSION_NAME);
 
     public final String name;
 
@@ -1,5 +1,6 @@
 package io.github.lunbun.pulsar.struct.setup;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
@@ -12,6 +13,8 @@ public class GraphicsCardPreference {
     public final DeviceType type;
     public final List<QueueFamily> queues;
     public final List<DeviceExtension> extensions;
+    // extensions that are enabled if the chosen graphics card supports them, but don't rule out graphics cards
+    public final List<DeviceExtension> optionalExtensions;
 
     public final Set<String> extensionsSet;
     public final boolean hasSwapChain;
@@ -21,6 +24,7 @@ public class GraphicsCardPreference {
         this.type = type;
         this.queues = queues;
         this.extensions = extensions;
+        this.optionalExtensions = new ArrayList<>();
         this.extensionsSet = extensions.stream()
                 .map(extension -> extension.name)
                 .collect(Collectors.toSet());
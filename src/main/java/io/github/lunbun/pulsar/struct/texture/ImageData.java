@@ -1,13 +1,19 @@
 package io.github.lunbun.pulsar.struct.texture;
 
 import io.github.lunbun.pulsar.struct.vertex.BufferData;
+import org.lwjgl.vulkan.VK10;
 
 public class ImageData extends BufferData {
+    // the layout that the last recorded upload leaves the image in, undefined until it has been uploaded to
+    public int layout;
+
     protected ImageData(BufferData bufferData) {
         super(bufferData);
+        this.layout = VK10.VK_IMAGE_LAYOUT_UNDEFINED;
     }
 
     public ImageData(long buffer, int memoryType, long memory, int pointer, long size, int allocSize) {
         super(buffer, memoryType, memory, pointer, size, allocSize);
+        this.layout = VK10.VK_IMAGE_LAYOUT_UNDEFINED;
     }
 }
@@ -7,6 +7,10 @@ public class BufferData {
     public int pointer;
     public long size;
     public int allocSize;
+    // offset of the data inside of the buffer, non-zero when the buffer is shared with other allocations
+    public long offset;
+    // address the data is persistently mapped to, or 0 if the memory is not host visible
+    public long mapped;
 
     protected BufferData(BufferData bufferData) {
         this.buffer = bufferData.buffer;
@@ -15,14 +19,27 @@ public class BufferData {
         this.pointer = bufferData.pointer;
         this.size = bufferData.size;
         this.allocSize = bufferData.allocSize;
+        this.offset = bufferData.offset;
+        this.mapped = bufferData.mapped;
     }
 
     public BufferData(long buffer, int memoryType, long memory, int pointer, long size, int allocSize) {
+        this(buffer, memoryType, memory, pointer, size, allocSize, 0);
+    }
+
+    public BufferData(long buffer, int memoryType, long memory, int pointer, long size, int allocSize, long offset) {
+        this(buffer, memoryType, memory, pointer, size, allocSize, offset, 0);
+    }
+
+    public BufferData(long buffer, int memoryType, long memory, int pointer, long size, int allocSize, long offset,
+                      long mapped) {
         this.buffer = buffer;
         this.memoryType = memoryType;
         this.memory = memory;
         this.pointer = pointer;
         this.size = size;
         this.allocSize = allocSize;
+        this.offset = offset;
+        this.mapped = mapped;
     }
 }
@@ -0,0 +1,69 @@
+package io.github.lunbun.pulsar.struct.vertex;
+
+import java.util.List;
+
+/**
+ * Snapshot of the memory used by a {@link io.github.lunbun.pulsar.component.vertex.MemoryAllocator}.
+ */
+public final class MemoryStatistics {
+    public final List<Type> types;
+    public final List<Heap> heaps;
+    // if the heap budgets come from VK_EXT_memory_budget, otherwise the budget of a heap is its size
+    public final boolean hasBudget;
+
+    public MemoryStatistics(List<Type> types, List<Heap> heaps, boolean hasBudget) {
+        this.types = types;
+        this.heaps = heaps;
+        this.hasBudget = hasBudget;
+    }
+
+    public static final class Type {
+        public final int memoryType;
+        public final int heapIndex;
+        public final int propertyFlags;
+        // bytes of Vulkan memory allocated for this memory type
+        public final long reserved;
+        // bytes of the reserved memory that are claimed
+        public final long used;
+        public final int allocationCount;
+        public final int slotCount;
+        public final long largestFreeBlock;
+
+        public Type(int memoryType, int heapIndex, int propertyFlags, long reserved, long used, int allocationCount,
+                    int slotCount, long largestFreeBlock) {
+            this.memoryType = memoryType;
+            this.heapIndex = heapIndex;
+            this.propertyFlags = propertyFlags;
+            this.reserved = reserved;
+            this.used = used;
+            this.allocationCount = allocationCount;
+            this.slotCount = slotCount;
+            this.largestFreeBlock = largestFreeBlock;
+        }
+
+        /**
+         * @return how much of the free memory can't be used by one allocation, 0 if all of it is in one block and
+         * close to 1 if it is split into many small blocks
+         */
+        public float getFragmentation() {
+            long free = this.reserved - this.used;
+            return free == 0 ? 0 : 1 - (float) this.largestFreeBlock / free;
+        }
+    }
+
+    public static final class Heap {
+        public final int heapIndex;
+        public final long size;
+        // bytes this process can allocate from the heap before allocations may fail or slow down
+        public final long budget;
+        // bytes of the heap used by this process, or -1 if VK_EXT_memory_budget is not supported
+        public final long usage;
+
+        public Heap(int heapIndex, long size, long budget, long usage) {
+            this.heapIndex = heapIndex;
+            this.size = size;
+            this.budget = budget;
+            this.usage = usage;
+        }
+    }
+}
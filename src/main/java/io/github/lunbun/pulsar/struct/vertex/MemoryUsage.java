@@ -0,0 +1,36 @@
+package io.github.lunbun.pulsar.struct.vertex;
+
+import org.lwjgl.vulkan.VK10;
+
+/**
+ * How memory is going to be accessed, which decides what memory type it is allocated from.
+ * Memory types need every required property, and are scored by the preferred properties they have minus the avoided
+ * properties they have. Ties go to the memory type with the larger heap. Host visible device local memory only counts as
+ * device local if it is on the largest device local heap (resizable BAR or integrated GPUs), and if a heap is out of
+ * memory the next best memory type is used.
+ */
+public enum MemoryUsage {
+    // only used by the device, written with transfers. On integrated GPUs this is also host visible.
+    GPU_ONLY(VK10.VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, 0, VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT),
+    // written by the host and read by the device many times, in device local host visible memory with resizable BAR and
+    // host memory otherwise
+    CPU_TO_GPU(VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT, VK10.VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, 0),
+    // written by the device and read back by the host, cached memory makes host reads fast
+    GPU_TO_CPU(VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT, VK10.VK_MEMORY_PROPERTY_HOST_CACHED_BIT, 0),
+    // written by the host and read once by the device, like staging memory. It stays out of device local memory, since
+    // host visible device local heaps are small.
+    STREAM(VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT, VK10.VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+            VK10.VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+
+    public final int requiredProperties;
+    public final int preferredProperties;
+    public final int avoidedProperties;
+
+    MemoryUsage(int requiredProperties, int preferredProperties, int avoidedProperties) {
+        this.requiredProperties = requiredProperties;
+        this.preferredProperties = preferredProperties;
+        this.avoidedProperties = avoidedProperties;
+    }
+
+    public static final MemoryUsage[] VALUES = MemoryUsage.values();
+}
@@ -4,6 +4,37 @@ package io.github.lunbun.pulsar.util;
  * Global settings for Pulsar
  */
 public class PulsarSettings {
-    public static final boolean RESET_COMMAND_BUFFERS = true;
     public static final boolean PREFER_VSYNC = true;
+    // frames the CPU can record ahead of the GPU, from 1 to 4. More frames trade latency for throughput. Can be set at
+    // launch with -Dpulsar.framesInFlight=<count>
+    public static final int FRAMES_IN_FLIGHT = Math.max(1, Math.min(4, Integer.getInteger("pulsar.framesInFlight", 2)));
+    // delays the start of each frame so that input is sampled as late as possible, set with -Dpulsar.lowLatency=true
+    public static final boolean LOW_LATENCY = Boolean.getBoolean("pulsar.lowLatency");
+    // nanoseconds a frame may still wait on the GPU once it has started in low latency mode, lower values lower latency
+    // but miss frames more often. Can be set in microseconds with -Dpulsar.targetLatency=<microseconds>
+    public static final long TARGET_LATENCY = 1000 * Long.getLong("pulsar.targetLatency", 1000);
+    // worker threads that render passes are recorded on, besides the render thread
+    public static final int RECORDING_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    // size of the first memory slot of each memory type, every following slot is twice as large as the last
+    public static final int MEMORY_SLOT_SIZE = 4 * 1048576;
+    public static final int MAX_MEMORY_SLOT_SIZE = 256 * 1048576;
+    // allocations at least this large get their own Vulkan memory instead of a range of a slot
+    public static final int DEDICATED_ALLOCATION_THRESHOLD = 2 * 1048576;
+    // frames a memory slot has to stay empty before it is freed
+    public static final int EMPTY_SLOT_FRAMES = 300;
+    // bytes of memory that each memory type keeps even if it is empty, so that bursts don't keep reallocating slots
+    public static final long MIN_MEMORY_RESERVE = 16 * 1048576;
+    // starting size of each region of a stream buffer, which grows if a frame needs more
+    public static final long STREAM_BUFFER_SIZE = 1048576;
+    // size of the ring that staging data is written into, larger uploads get their own staging buffer
+    public static final long STAGING_RING_SIZE = 16 * 1048576;
+
+    // frames between looking for a slot to defragment
+    public static final int DEFRAGMENT_INTERVAL = 60;
+    // only slots with at most this fraction claimed are defragmented
+    public static final float DEFRAGMENT_MAX_OCCUPANCY = 0.25f;
+    // most bytes and nanoseconds spent moving buffers each frame
+    public static final long DEFRAGMENT_BYTE_BUDGET = 4 * 1048576;
+    public static final long DEFRAGMENT_TIME_BUDGET = 500000;
 }
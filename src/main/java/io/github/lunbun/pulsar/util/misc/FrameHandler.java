@@ -0,0 +1,7 @@
+package io.github.lunbun.pulsar.util.misc;
+
+@FunctionalInterface
+public interface FrameHandler {
+    // called once the fence of the frame has signalled, before anything of the frame is recorded
+    void beginFrame(int currentFrame);
+}
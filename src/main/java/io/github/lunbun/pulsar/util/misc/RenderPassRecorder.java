@@ -0,0 +1,41 @@
+package io.github.lunbun.pulsar.util.misc;
+
+import io.github.lunbun.pulsar.component.drawing.CommandBuffer;
+import io.github.lunbun.pulsar.component.drawing.Framebuffer;
+import io.github.lunbun.pulsar.component.pipeline.RenderPass;
+
+/**
+ * Records the contents of a render pass into a secondary command buffer. Render pass recorders record in parallel on
+ * worker threads, so they must not share anything that isn't thread safe with each other.
+ */
+public interface RenderPassRecorder {
+    RenderPass getRenderPass();
+
+    Framebuffer getFramebuffer(int index);
+
+    // called inside of the render pass, which the primary command buffer begins and ends
+    void record(CommandBuffer commandBuffer, int index, int currentFrame);
+
+    /**
+     * Called every frame before anything is recorded, even if the commands are replayed, to update things like uniforms
+     */
+    default void update(int index, int currentFrame) {
+    }
+
+    /**
+     * @return if the commands are kept for each swap chain image and frame in flight and replayed while they haven't
+     * changed, instead of being recorded every frame
+     */
+    default boolean isCached() {
+        return false;
+    }
+
+    /**
+     * Called once a frame for cached recorders. The commands are recorded again when they have changed, and when the swap
+     * chain is recreated.
+     * @return if the commands have changed since the last frame, like when a buffer they bind has been moved
+     */
+    default boolean isDirty() {
+        return true;
+    }
+}
@@ -7,4 +7,8 @@ public final class AlignmentUtils {
     public static int alignas(int offset, int alignment) {
         return offset % alignment == 0 ? offset : ((offset - 1) | (alignment - 1)) + 1;
     }
+
+    public static long alignas(long offset, long alignment) {
+        return offset % alignment == 0 ? offset : ((offset - 1) | (alignment - 1)) + 1;
+    }
 }
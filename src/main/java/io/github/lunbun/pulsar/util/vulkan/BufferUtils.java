@@ -1,16 +1,16 @@
 package io.github.lunbun.pulsar.util.vulkan;
 
+import io.github.lunbun.pulsar.PulsarApplication;
 import io.github.lunbun.pulsar.component.drawing.CommandBuffer;
-import io.github.lunbun.pulsar.component.drawing.CommandPool;
 import io.github.lunbun.pulsar.component.setup.LogicalDevice;
 import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
-import io.github.lunbun.pulsar.component.setup.QueueManager;
 import io.github.lunbun.pulsar.component.vertex.AllocResult;
 import io.github.lunbun.pulsar.component.vertex.MemoryAllocator;
-import io.github.lunbun.pulsar.struct.setup.QueueFamily;
+import io.github.lunbun.pulsar.component.vertex.UploadQueue;
 import io.github.lunbun.pulsar.struct.vertex.BufferData;
-import org.lwjgl.PointerBuffer;
+import io.github.lunbun.pulsar.struct.vertex.MemoryUsage;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.*;
 
 import java.nio.ByteBuffer;
@@ -18,21 +18,104 @@ import java.nio.LongBuffer;
 import java.util.function.Consumer;
 
 public final class BufferUtils {
+    private static final int HOST_VISIBLE_DEVICE_LOCAL = VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT |
+            VK10.VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT;
+
     private BufferUtils() { }
 
     public static int findMemoryType(PhysicalDevice physicalDevice, int typeFilter, int properties) {
+        return findMemoryType(physicalDevice, typeFilter, properties, 0, 0);
+    }
+
+    public static int findMemoryType(PhysicalDevice physicalDevice, int typeFilter, MemoryUsage usage) {
+        return findMemoryType(physicalDevice, typeFilter, usage.requiredProperties, usage.preferredProperties,
+                usage.avoidedProperties);
+    }
+
+    /**
+     * Finds the memory type that has all of the required properties, the most preferred properties and the fewest
+     * avoided properties. Ties go to the memory type with the larger heap.
+     */
+    public static int findMemoryType(PhysicalDevice physicalDevice, int typeFilter, int properties,
+                                     int preferredProperties, int avoidedProperties) {
+        int memoryType = findBestMemoryType(physicalDevice, typeFilter, properties, preferredProperties,
+                avoidedProperties);
+        if (memoryType == -1) {
+            throw new RuntimeException("Failed to find suitable memory type!");
+        }
+        return memoryType;
+    }
+
+    // returns -1 if no memory type in the filter has the required properties
+    private static int findBestMemoryType(PhysicalDevice physicalDevice, int typeFilter, int properties,
+                                          int preferredProperties, int avoidedProperties) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
             VkPhysicalDeviceMemoryProperties memProperties = VkPhysicalDeviceMemoryProperties.callocStack(stack);
             VK10.vkGetPhysicalDeviceMemoryProperties(physicalDevice.device, memProperties);
 
+            // the largest device local heap is video memory (or all memory on integrated GPUs)
+            int mainHeap = -1;
+            for (int i = 0; i < memProperties.memoryHeapCount(); ++i) {
+                VkMemoryHeap heap = memProperties.memoryHeaps(i);
+                if ((heap.flags() & VK10.VK_MEMORY_HEAP_DEVICE_LOCAL_BIT) != 0 &&
+                        (mainHeap == -1 || heap.size() > memProperties.memoryHeaps(mainHeap).size())) {
+                    mainHeap = i;
+                }
+            }
+
+            int bestType = -1;
+            int bestScore = Integer.MIN_VALUE;
+            long bestHeapSize = 0;
             for (int i = 0; i < memProperties.memoryTypeCount(); ++i) {
-                if (((typeFilter & (1 << i)) != 0) &&
-                        ((memProperties.memoryTypes(i).propertyFlags() & properties) == properties)) {
-                    return i;
+                VkMemoryType memoryType = memProperties.memoryTypes(i);
+                int flags = memoryType.propertyFlags();
+                if (((typeFilter & (1 << i)) == 0) || ((flags & properties) != properties)) {
+                    continue;
+                }
+
+                // without resizable BAR, host visible device local memory is a small window (usually 256 MB) that
+                // runs out quickly, so only prefer it when it is the whole of video memory
+                int preferredFlags = flags;
+                if ((flags & HOST_VISIBLE_DEVICE_LOCAL) == HOST_VISIBLE_DEVICE_LOCAL && memoryType.heapIndex() != mainHeap) {
+                    preferredFlags &= ~VK10.VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT;
+                }
+
+                int score = Integer.bitCount(preferredFlags & preferredProperties) -
+                        Integer.bitCount(flags & avoidedProperties);
+                long heapSize = memProperties.memoryHeaps(memoryType.heapIndex()).size();
+                if (score > bestScore || (score == bestScore && heapSize > bestHeapSize)) {
+                    bestType = i;
+                    bestScore = score;
+                    bestHeapSize = heapSize;
                 }
             }
 
-            throw new RuntimeException("Failed to find suitable memory type!");
+            return bestType;
+        }
+    }
+
+    /**
+     * Allocates memory from the best memory type for the usage. If the heap of that memory type is out of memory, the
+     * next best memory type is tried, until none are left.
+     */
+    public static AllocResult allocateMemory(PhysicalDevice physicalDevice, MemoryAllocator allocator,
+                                             VkMemoryRequirements memoryRequirements, MemoryUsage memoryUsage) {
+        int typeFilter = memoryRequirements.memoryTypeBits();
+        while (true) {
+            int memoryType = findBestMemoryType(physicalDevice, typeFilter, memoryUsage.requiredProperties,
+                    memoryUsage.preferredProperties, memoryUsage.avoidedProperties);
+            if (memoryType == -1) {
+                throw new RuntimeException("Failed to allocate buffer memory!");
+            }
+
+            AllocResult allocResult = allocator.mallocAlignedOrNull(memoryType, (int) memoryRequirements.size(),
+                    (int) memoryRequirements.alignment());
+            if (allocResult != null) {
+                return allocResult;
+            }
+
+            PulsarApplication.LOGGER.warn("Memory type " + memoryType + " is out of memory, trying the next best one");
+            typeFilter &= ~(1 << memoryType);
         }
     }
 
@@ -58,80 +141,77 @@ public final class BufferUtils {
         return pVertexBuffer.get(0);
     }
 
-    public static BufferData createBuffer(LogicalDevice device, PhysicalDevice physicalDevice, MemoryAllocator allocator, long size, int usage, int properties, MemoryStack stack) {
+    public static BufferData createBuffer(LogicalDevice device, PhysicalDevice physicalDevice, MemoryAllocator allocator,
+                                          long size, int usage, MemoryUsage memoryUsage, MemoryStack stack) {
+        if (allocator.slabs.canAllocate(size, usage)) {
+            return allocator.slabs.allocate(size, usage, memoryUsage, stack);
+        }
+
         long buffer = BufferUtils.createBuffer(device, size, usage, stack);
 
         VkMemoryRequirements memoryRequirements = getMemoryRequirements(device, buffer, stack);
-        int memoryType = findMemoryType(physicalDevice, memoryRequirements.memoryTypeBits(), properties);
-        AllocResult allocResult = allocator.mallocAligned(memoryType, (int) memoryRequirements.size(), (int) memoryRequirements.alignment());
+        AllocResult allocResult = allocateMemory(physicalDevice, allocator, memoryRequirements, memoryUsage);
         long memory = allocResult.heap;
         int pointer = allocResult.pointer;
 
         VK10.vkBindBufferMemory(device.device, buffer, memory, pointer);
-        return new BufferData(buffer, memoryType, memory, pointer, size, (int) memoryRequirements.size());
+        return new BufferData(buffer, allocResult.memoryType, memory, pointer, size, (int) memoryRequirements.size(), 0,
+                allocResult.mapped);
+    }
+
+    /**
+     * Gets a view of the persistently mapped memory of a buffer
+     * @param buffer the buffer, which has to be in host visible memory
+     * @return a {@link ByteBuffer} over the memory of the buffer
+     */
+    public static ByteBuffer getMappedBuffer(BufferData buffer) {
+        if (buffer.mapped == 0) {
+            throw new RuntimeException("Buffer memory is not host visible!");
+        }
+        return MemoryUtil.memByteBuffer(buffer.mapped, (int) buffer.size);
+    }
+
+    /**
+     * Marks bytes of a mapped buffer as written, so they are flushed if the memory isn't host coherent
+     * @param offset the offset of the bytes in the buffer
+     */
+    public static void markWritten(MemoryAllocator allocator, BufferData buffer, long offset, long size) {
+        allocator.markDirty(buffer.memoryType, buffer.memory, buffer.pointer + offset, size);
     }
 
     public static void copyBuffer(long src, long dst, int size, CommandBuffer buffer) {
         buffer.copyBuffer(src, dst, size);
     }
 
-    public static void destroy(LogicalDevice device, MemoryAllocator allocator, BufferData data) {
-        VK10.vkDestroyBuffer(device.device, data.buffer, null);
-        allocator.free(data.memory, data.memoryType, data.pointer, data.allocSize);
+    public static void copyBuffer(BufferData src, BufferData dst, int size, CommandBuffer buffer) {
+        buffer.copyBuffer(src.buffer, src.offset, dst.buffer, dst.offset, size);
     }
 
-    private static void uploadData(LogicalDevice device, PhysicalDevice physicalDevice, MemoryAllocator allocator,
-                                  BufferData buffer, Consumer<ByteBuffer> bufferWriter, boolean useStaging,
-                                  CommandBuffer commandBuffer, boolean submit, CommandPool commandPool, VkQueue queue) {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            PointerBuffer pData = stack.mallocPointer(1);
-            if (useStaging) {
-                BufferData staging = BufferUtils.createBuffer(device, physicalDevice, allocator,
-                        buffer.size, VK10.VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
-                        VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK10.VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, stack);
-                VK10.vkMapMemory(device.device, staging.memory, staging.pointer, staging.size, 0, pData);
-                {
-                    bufferWriter.accept(pData.getByteBuffer(0, (int) staging.size));
-                }
-                VK10.vkUnmapMemory(device.device, staging.memory);
-                BufferUtils.copyBuffer(staging.buffer, buffer.buffer, (int) buffer.size, commandBuffer);
-
-                // we need parameter for submit since we can't submit the command buffer after the staging buffer has
-                // been destroyed
-                if (submit) {
-                    commandBuffer.endRecordingOneTimeSubmit(queue, commandPool);
-                }
+    /**
+     * Batches a copy, see {@link CommandBuffer#batchCopyBuffer(long, long, long, long, long)}
+     */
+    public static void batchCopyBuffer(BufferData src, BufferData dst, int size, CommandBuffer buffer) {
+        buffer.batchCopyBuffer(src.buffer, src.offset, dst.buffer, dst.offset, size);
+    }
 
-                destroy(device, allocator, staging);
-            } else {
-                // staging buffers can actually be slower if we have to upload data every frame
-                // considering that Minecraft uses immediate mode, that is most of the rendering
-                // TODO: flushing mapped memory ranges (see https://vulkan-tutorial.com/Vertex_buffers/Vertex_buffer_creation)
-                VK10.vkMapMemory(device.device, buffer.memory, buffer.pointer, buffer.size, 0, pData);
-                {
-                    bufferWriter.accept(pData.getByteBuffer(0, (int) buffer.size));
-                }
-                VK10.vkUnmapMemory(device.device, buffer.memory);
-            }
+    public static void destroy(LogicalDevice device, MemoryAllocator allocator, BufferData data) {
+        if (allocator.slabs.free(data)) {
+            return;
         }
-    }
 
-    public static void uploadData(LogicalDevice device, PhysicalDevice physicalDevice, MemoryAllocator allocator,
-                                  BufferData buffer, Consumer<ByteBuffer> bufferWriter, boolean useStaging,
-                                  CommandBuffer commandBuffer) {
-        uploadData(device, physicalDevice, allocator, buffer, bufferWriter, useStaging, commandBuffer, false, null, null);
+        VK10.vkDestroyBuffer(device.device, data.buffer, null);
+        allocator.free(data.memory, data.memoryType, data.pointer, data.allocSize);
     }
 
-    public static void uploadData(LogicalDevice device, PhysicalDevice physicalDevice, MemoryAllocator allocator,
-                                  CommandPool commandPool, QueueManager queues, BufferData buffer,
+    public static void uploadData(MemoryAllocator allocator, UploadQueue uploads, BufferData buffer,
                                   Consumer<ByteBuffer> bufferWriter, boolean useStaging) {
         if (useStaging) {
-            CommandBuffer commandBuffer = commandPool.allocateBuffer();
-            commandBuffer.startRecordingOneTimeSubmit();
-            uploadData(device, physicalDevice, allocator, buffer, bufferWriter, true, commandBuffer, true,
-                    commandPool, queues.getQueue(QueueFamily.GRAPHICS));
+            uploads.uploadBuffer(buffer, bufferWriter);
         } else {
-            uploadData(device, physicalDevice, allocator, buffer, bufferWriter, false, null, false, null, null);
+            // staging buffers can actually be slower if we have to upload data every frame
+            // considering that Minecraft uses immediate mode, that is most of the rendering
+            bufferWriter.accept(getMappedBuffer(buffer));
+            markWritten(allocator, buffer, 0, buffer.size);
         }
     }
 }
@@ -14,6 +14,10 @@ public enum DataType {
     UINT(VK10.VK_FORMAT_R32_UINT, Integer.BYTES, Integer.BYTES, (buffer, object) -> {
         buffer.putInt((int) object);
     }),
+    // 4 normalized bytes, read as a vec4 by shaders (like an rgba color)
+    UBYTE4(VK10.VK_FORMAT_R8G8B8A8_UNORM, 4, 4, (buffer, object) -> {
+        buffer.putInt((int) object);
+    }),
     VEC2(VK10.VK_FORMAT_R32G32_SFLOAT, 2 * Float.BYTES, 2 * Float.BYTES, (buffer, object) -> {
         ((Vector2f) object).get(buffer);
         buffer.position(buffer.position() + 2 * Float.BYTES);
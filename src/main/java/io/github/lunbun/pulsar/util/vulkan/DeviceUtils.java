@@ -23,6 +23,15 @@ public final class DeviceUtils {
 
             IntBuffer presentSupport = stack.ints(VK10.VK_FALSE);
 
+            if (preference.queues.contains(QueueFamily.TRANSFER)) {
+                for (int i = 0; i < queueFamilies.capacity(); ++i) {
+                    if (isDedicatedTransfer(queueFamilies.get(i))) {
+                        indices.setFamily(QueueFamily.TRANSFER, i);
+                        break;
+                    }
+                }
+            }
+
             for (int i = 0; i < queueFamilies.capacity(); ++i) {
                 VkQueueFamilyProperties queueFamily = queueFamilies.get(i);
                 for (QueueFamily queue : preference.queues) {
@@ -34,6 +43,12 @@ public final class DeviceUtils {
                         }
 
                         presentSupport.put(0, VK10.VK_FALSE);
+                    } else if (QueueFamily.TRANSFER.equals(queue)) {
+                        // graphics and compute families can always transfer, even if they don't report the bit
+                        if (!indices.hasFamily(QueueFamily.TRANSFER) && (queueFamily.queueFlags() &
+                                (VK10.VK_QUEUE_GRAPHICS_BIT | VK10.VK_QUEUE_COMPUTE_BIT | VK10.VK_QUEUE_TRANSFER_BIT)) != 0) {
+                            indices.setFamily(QueueFamily.TRANSFER, i);
+                        }
                     } else {
                         if ((queueFamily.queueFlags() & queue.bit) != 0) {
                             indices.setFamily(queue, i);
@@ -49,4 +64,15 @@ public final class DeviceUtils {
             return indices;
         }
     }
+
+    /**
+     * Checks if a queue family only does transfers, which means it is a separate copy engine that can run alongside
+     * rendering. Its image copies also have to work on single texels, since textures are updated in small regions.
+     */
+    private static boolean isDedicatedTransfer(VkQueueFamilyProperties queueFamily) {
+        VkExtent3D granularity = queueFamily.minImageTransferGranularity();
+        return ((queueFamily.queueFlags() & VK10.VK_QUEUE_TRANSFER_BIT) != 0) &&
+                ((queueFamily.queueFlags() & (VK10.VK_QUEUE_GRAPHICS_BIT | VK10.VK_QUEUE_COMPUTE_BIT)) == 0) &&
+                (granularity.width() == 1) && (granularity.height() == 1) && (granularity.depth() == 1);
+    }
 }
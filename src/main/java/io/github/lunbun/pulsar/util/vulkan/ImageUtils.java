@@ -1,15 +1,13 @@
 package io.github.lunbun.pulsar.util.vulkan;
 
 import io.github.lunbun.pulsar.component.drawing.CommandBuffer;
-import io.github.lunbun.pulsar.component.drawing.CommandPool;
 import io.github.lunbun.pulsar.component.setup.LogicalDevice;
 import io.github.lunbun.pulsar.component.setup.PhysicalDevice;
-import io.github.lunbun.pulsar.component.setup.QueueManager;
 import io.github.lunbun.pulsar.component.vertex.AllocResult;
 import io.github.lunbun.pulsar.component.vertex.MemoryAllocator;
-import io.github.lunbun.pulsar.struct.setup.QueueFamily;
+import io.github.lunbun.pulsar.component.vertex.UploadQueue;
 import io.github.lunbun.pulsar.struct.texture.ImageData;
-import io.github.lunbun.pulsar.struct.vertex.BufferData;
+import io.github.lunbun.pulsar.struct.vertex.MemoryUsage;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
@@ -47,18 +45,17 @@ public final class ImageUtils {
     }
 
     public static ImageData createImage(LogicalDevice device, PhysicalDevice physicalDevice, MemoryAllocator allocator,
-                                        int imageSize, int texWidth, int texHeight, int format, int properties,
-                                        MemoryStack stack) {
+                                        int imageSize, int texWidth, int texHeight, int format,
+                                        MemoryUsage memoryUsage, MemoryStack stack) {
         long textureImage = createImage(device, texWidth, texHeight, format, stack);
 
         VkMemoryRequirements memoryRequirements = getMemoryRequirements(device, textureImage, stack);
-        int memoryType = BufferUtils.findMemoryType(physicalDevice, memoryRequirements.memoryTypeBits(), properties);
-        AllocResult allocResult = allocator.mallocAligned(memoryType, (int) memoryRequirements.size(), (int) memoryRequirements.alignment());
+        AllocResult allocResult = BufferUtils.allocateMemory(physicalDevice, allocator, memoryRequirements, memoryUsage);
         long memory = allocResult.heap;
         int pointer = allocResult.pointer;
 
         VK10.vkBindImageMemory(device.device, textureImage, memory, pointer);
-        return new ImageData(textureImage, memoryType, memory, pointer, imageSize, (int) memoryRequirements.size());
+        return new ImageData(textureImage, allocResult.memoryType, memory, pointer, imageSize, (int) memoryRequirements.size());
     }
 
     public static void transitionImageLayout(long image, int format, int oldLayout, int newLayout,
@@ -96,6 +93,14 @@ public final class ImageUtils {
 
                 sourceStage = VK10.VK_PIPELINE_STAGE_TRANSFER_BIT;
                 destinationStage = VK10.VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT;
+            } else if (oldLayout == VK10.VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL &&
+                    newLayout == VK10.VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL) {
+                // an image that is updated again, after earlier frames have sampled it
+                barrier.srcAccessMask(VK10.VK_ACCESS_SHADER_READ_BIT);
+                barrier.dstAccessMask(VK10.VK_ACCESS_TRANSFER_WRITE_BIT);
+
+                sourceStage = VK10.VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT;
+                destinationStage = VK10.VK_PIPELINE_STAGE_TRANSFER_BIT;
             } else {
                 throw new UnsupportedOperationException("Unsupported layout transition!");
             }
@@ -105,9 +110,14 @@ public final class ImageUtils {
     }
 
     public static void copyBufferToImage(long buffer, long image, int x, int y, int width, int height, CommandBuffer commandBuffer) {
+        copyBufferToImage(buffer, 0, image, x, y, width, height, commandBuffer);
+    }
+
+    public static void copyBufferToImage(long buffer, long bufferOffset, long image, int x, int y, int width, int height,
+                                         CommandBuffer commandBuffer) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
             VkBufferImageCopy.Buffer region = VkBufferImageCopy.callocStack(1, stack);
-            region.bufferOffset(0);
+            region.bufferOffset(bufferOffset);
             region.bufferRowLength(0);
             region.bufferImageHeight(0);
             region.imageSubresource().aspectMask(VK10.VK_IMAGE_ASPECT_COLOR_BIT);
@@ -121,35 +131,21 @@ public final class ImageUtils {
         }
     }
 
-    public static void uploadPixels(LogicalDevice device, PhysicalDevice physicalDevice, MemoryAllocator allocator,
-                                    CommandPool commandPool, QueueManager queues, int x, int y, int width, int height,
-                                    int imageSize, int format, ImageData image, ByteBuffer pixels, MemoryStack stack,
-                                    boolean useStagingBuffer) {
-        if (useStagingBuffer) {
-            BufferData stagingBuffer = BufferUtils.createBuffer(device, physicalDevice, allocator,
-                    imageSize, VK10.VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK10.VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT |
-                            VK10.VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, stack);
-
-            CommandBuffer commandBuffer = commandPool.allocateBuffer();
-            commandBuffer.startRecordingOneTimeSubmit();
-            {
-                // we're creating a staging buffer manually, so we don't want to stage the staging buffer
-                BufferUtils.uploadData(device, physicalDevice, allocator, stagingBuffer, (bufferCopy) -> {
-                    bufferCopy.put(pixels);
-                    bufferCopy.rewind();
-                    pixels.rewind();
-                }, false, commandBuffer);
-
-                transitionImageLayout(image.buffer, format, VK10.VK_IMAGE_LAYOUT_UNDEFINED,
-                        VK10.VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, commandBuffer);
-                copyBufferToImage(stagingBuffer.buffer, image.buffer, x, y, width, height, commandBuffer);
-                transitionImageLayout(image.buffer, format, VK10.VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
-                        VK10.VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL, commandBuffer);
-            }
-            commandBuffer.endRecordingOneTimeSubmit(queues.getQueue(QueueFamily.GRAPHICS), commandPool);
+    /**
+     * Batches a copy, see {@link CommandBuffer#batchCopyBufferToImage(long, long, long, int, int, int, int)}
+     */
+    public static void batchCopyBufferToImage(long buffer, long bufferOffset, long image, int x, int y, int width,
+                                              int height, CommandBuffer commandBuffer) {
+        commandBuffer.batchCopyBufferToImage(buffer, bufferOffset, image, x, y, width, height);
+    }
 
-            BufferUtils.destroy(device, allocator, stagingBuffer);
+    public static void uploadPixels(UploadQueue uploads, int x, int y, int width, int height, int format,
+                                    ImageData image, ByteBuffer pixels, boolean useStagingBuffer) {
+        if (useStagingBuffer) {
+            uploads.uploadImage(image, format, x, y, width, height, pixels);
         } else {
+            // images use optimal tiling, which has an implementation defined layout, so even images in host visible
+            // memory have to be written with a copy
             throw new UnsupportedOperationException("Staging buffers required for image uploading!");
         }
     }
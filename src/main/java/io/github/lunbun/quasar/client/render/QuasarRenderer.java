@@ -5,17 +5,22 @@ import io.github.lunbun.pulsar.struct.setup.DeviceExtension;
 import io.github.lunbun.pulsar.struct.setup.DeviceType;
 import io.github.lunbun.pulsar.struct.setup.GraphicsCardPreference;
 import io.github.lunbun.pulsar.struct.setup.QueueFamily;
+import io.github.lunbun.pulsar.struct.vertex.MemoryStatistics;
 import io.github.lunbun.quasar.Quasar;
 import io.github.lunbun.quasar.client.engine.framework.glfw.GLFWWindow;
+import io.github.lunbun.quasar.client.render.immediate.Immediates;
 import io.github.lunbun.quasar.client.render.test.TestRenderer;
+import io.github.lunbun.quasar.client.util.QuasarSettings;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 
 import java.util.List;
 
 public class QuasarRenderer {
     public static final PulsarApplication pulsar = new PulsarApplication("Minecraft");
+    public static final Immediates immediates = new Immediates();
     private static final List<VulkanRenderer> vulkanRenderers = new ObjectArrayList<>();
     private static long window;
+    private static long lastMemoryStatistics;
 
     public static void initWindow() {
         GLFWWindow.disableClientAPI();
@@ -29,7 +34,18 @@ public class QuasarRenderer {
 
     private static void createVulkanRenderers() {
         vulkanRenderers.add(new TestRenderer());
-//        vulkanRenderers.add(new Immediates());
+//        vulkanRenderers.add(immediates);
+    }
+
+    /**
+     * Called at the start of every client frame, before input is handled
+     */
+    public static void beginFrame() {
+        // events are polled at the end of the previous frame, so they are polled again after sleeping to sample input
+        // as late as possible
+        if (pulsar.frameRenderer != null && pulsar.frameRenderer.sleepUntilFrameStart()) {
+            GLFWWindow.pollEvents();
+        }
     }
 
     public static void resizeFramebuffer(int width, int height) {
@@ -42,9 +58,10 @@ public class QuasarRenderer {
 
         GraphicsCardPreference preference = new GraphicsCardPreference(
                 DeviceType.INTEGRATED,
-                new QueueFamily[] { QueueFamily.GRAPHICS, QueueFamily.PRESENT },
+                new QueueFamily[] { QueueFamily.GRAPHICS, QueueFamily.PRESENT, QueueFamily.TRANSFER },
                 new DeviceExtension[] { DeviceExtension.SWAP_CHAIN }
         );
+        preference.optionalExtensions.add(DeviceExtension.MEMORY_BUDGET);
         preference.hasAnisotropicFiltering = true;
         pulsar.requestGraphicsCard(preference);
 
@@ -60,10 +77,12 @@ public class QuasarRenderer {
             }
         });
 
+        for (VulkanRenderer vulkanRenderer : vulkanRenderers) {
+            pulsar.addRenderPassRecorder(vulkanRenderer);
+        }
         pulsar.addCommandBufferRecorder((commandBuffer, index, currentFrame) -> {
-            for (VulkanRenderer vulkanRenderer : vulkanRenderers) {
-                vulkanRenderer.recordCommandBuffers(commandBuffer, index, currentFrame);
-            }
+            // recording happens once a frame, so this is a convenient place to poll
+            pollMemoryStatistics();
         });
 
         pulsar.initialize();
@@ -101,6 +120,36 @@ public class QuasarRenderer {
 //        cleanup();
     }
 
+    public static void pollMemoryStatistics() {
+        if (QuasarSettings.MEMORY_STATISTICS_INTERVAL <= 0) {
+            return;
+        }
+
+        long time = System.currentTimeMillis();
+        if (time - lastMemoryStatistics >= QuasarSettings.MEMORY_STATISTICS_INTERVAL) {
+            lastMemoryStatistics = time;
+            logMemoryStatistics();
+        }
+    }
+
+    public static void logMemoryStatistics() {
+        MemoryStatistics statistics = pulsar.getMemoryStatistics();
+
+        for (MemoryStatistics.Type type : statistics.types) {
+            Quasar.LOGGER.info(String.format("Memory type %d (heap %d): %.1f / %.1f MB used, %d allocations, " +
+                            "%d slots, largest free block %.1f MB, %.0f%% fragmented", type.memoryType, type.heapIndex,
+                    type.used / 1048576.0, type.reserved / 1048576.0, type.allocationCount, type.slotCount,
+                    type.largestFreeBlock / 1048576.0, type.getFragmentation() * 100));
+        }
+
+        if (statistics.hasBudget) {
+            for (MemoryStatistics.Heap heap : statistics.heaps) {
+                Quasar.LOGGER.info(String.format("Memory heap %d: %.1f / %.1f MB of budget used (%.1f MB heap)",
+                        heap.heapIndex, heap.usage / 1048576.0, heap.budget / 1048576.0, heap.size / 1048576.0));
+            }
+        }
+    }
+
     public static void cleanup() {
         for (VulkanRenderer vulkanRenderer : vulkanRenderers) {
             vulkanRenderer.destroy();
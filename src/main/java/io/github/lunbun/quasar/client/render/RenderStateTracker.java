@@ -0,0 +1,163 @@
+package io.github.lunbun.quasar.client.render;
+
+import com.mojang.blaze3d.platform.GlStateManager;
+import io.github.lunbun.pulsar.struct.pipeline.Blend;
+import io.github.lunbun.pulsar.struct.pipeline.PipelineState;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL14;
+
+/**
+ * Shadows the OpenGL state that Minecraft sets through RenderSystem, packed into a single int key. Draws remember the
+ * key they were submitted with, and pipelines are cached by it, so changing state is only a few bit operations.
+ *
+ * Key layout, from the lowest bit:
+ * blend (1), texture (1), cull (1), depth test (1), depth write (1), depth func (3),
+ * src color factor (4), dst color factor (4), src alpha factor (4), dst alpha factor (4), topology (1)
+ * The topology isn't OpenGL state, it is only added to the pipeline key of a draw.
+ */
+public final class RenderStateTracker {
+    private static final int BLEND = 1;
+    private static final int TEXTURE = 1 << 1;
+    private static final int CULL = 1 << 2;
+    private static final int DEPTH_TEST = 1 << 3;
+    private static final int DEPTH_WRITE = 1 << 4;
+    private static final int DEPTH_FUNC_SHIFT = 5;
+    private static final int SRC_COLOR_SHIFT = 8;
+    private static final int DST_COLOR_SHIFT = 12;
+    private static final int SRC_ALPHA_SHIFT = 16;
+    private static final int DST_ALPHA_SHIFT = 20;
+    private static final int TOPOLOGY_SHIFT = 24;
+    private static final int DEPTH_FUNC_MASK = 0x7;
+    private static final int FACTOR_MASK = 0xf;
+    private static final int TOPOLOGY_MASK = 0x1;
+    private static final int BLEND_FUNC_MASK = 0xffff << SRC_COLOR_SHIFT;
+
+    // minecraft's factor enums have the same names as the blend factors
+    private static final Blend.Factor[] SRC_FACTORS = new Blend.Factor[GlStateManager.SrcFactor.values().length];
+    private static final Blend.Factor[] DST_FACTORS = new Blend.Factor[GlStateManager.DstFactor.values().length];
+
+    static {
+        for (GlStateManager.SrcFactor factor : GlStateManager.SrcFactor.values()) {
+            SRC_FACTORS[factor.ordinal()] = Blend.Factor.valueOf(factor.name());
+        }
+        for (GlStateManager.DstFactor factor : GlStateManager.DstFactor.values()) {
+            DST_FACTORS[factor.ordinal()] = Blend.Factor.valueOf(factor.name());
+        }
+    }
+
+    // the default opengl state: everything disabled, depth writes on, GL_LESS and a blend func of ONE, ZERO
+    private static int key = DEPTH_WRITE | (PipelineState.CompareOperator.LESS.ordinal() << DEPTH_FUNC_SHIFT) |
+            packBlendFunc(Blend.Factor.ONE, Blend.Factor.ZERO, Blend.Factor.ONE, Blend.Factor.ZERO);
+
+    private RenderStateTracker() {
+    }
+
+    public static int getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the key without the state that doesn't change the pipeline, so that equal pipelines share a key
+     * @param topology the topology of the draw
+     */
+    public static int getPipelineKey(PipelineState.Topology topology) {
+        // textures aren't sampled yet, so the texture bit doesn't change the pipeline
+        int pipelineKey = key & ~TEXTURE;
+        if ((pipelineKey & BLEND) == 0) {
+            pipelineKey &= ~BLEND_FUNC_MASK;
+        }
+        return pipelineKey | (topology.ordinal() << TOPOLOGY_SHIFT);
+    }
+
+    private static void set(int bit, boolean enabled) {
+        key = enabled ? key | bit : key & ~bit;
+    }
+
+    public static void setBlend(boolean enabled) {
+        set(BLEND, enabled);
+    }
+
+    public static void setTexture(boolean enabled) {
+        set(TEXTURE, enabled);
+    }
+
+    public static void setCull(boolean enabled) {
+        set(CULL, enabled);
+    }
+
+    public static void setDepthTest(boolean enabled) {
+        set(DEPTH_TEST, enabled);
+    }
+
+    public static void setDepthMask(boolean enabled) {
+        set(DEPTH_WRITE, enabled);
+    }
+
+    public static void setDepthFunc(int func) {
+        if (func < GL11.GL_NEVER || func > GL11.GL_ALWAYS) {
+            throw new UnsupportedOperationException("Unsupported depth func " + func + "!");
+        }
+        key = (key & ~(DEPTH_FUNC_MASK << DEPTH_FUNC_SHIFT)) | ((func - GL11.GL_NEVER) << DEPTH_FUNC_SHIFT);
+    }
+
+    private static int packBlendFunc(Blend.Factor srcColor, Blend.Factor dstColor, Blend.Factor srcAlpha,
+                                     Blend.Factor dstAlpha) {
+        return (srcColor.ordinal() << SRC_COLOR_SHIFT) | (dstColor.ordinal() << DST_COLOR_SHIFT) |
+                (srcAlpha.ordinal() << SRC_ALPHA_SHIFT) | (dstAlpha.ordinal() << DST_ALPHA_SHIFT);
+    }
+
+    public static void setBlendFunc(Blend.Factor srcColor, Blend.Factor dstColor, Blend.Factor srcAlpha,
+                                    Blend.Factor dstAlpha) {
+        key = (key & ~BLEND_FUNC_MASK) | packBlendFunc(srcColor, dstColor, srcAlpha, dstAlpha);
+    }
+
+    public static void setBlendFunc(GlStateManager.SrcFactor srcColor, GlStateManager.DstFactor dstColor,
+                                    GlStateManager.SrcFactor srcAlpha, GlStateManager.DstFactor dstAlpha) {
+        setBlendFunc(SRC_FACTORS[srcColor.ordinal()], DST_FACTORS[dstColor.ordinal()],
+                SRC_FACTORS[srcAlpha.ordinal()], DST_FACTORS[dstAlpha.ordinal()]);
+    }
+
+    public static void setBlendFunc(int srcColor, int dstColor, int srcAlpha, int dstAlpha) {
+        setBlendFunc(getFactor(srcColor), getFactor(dstColor), getFactor(srcAlpha), getFactor(dstAlpha));
+    }
+
+    private static Blend.Factor getFactor(int glFactor) {
+        switch (glFactor) {
+            case GL11.GL_ZERO: return Blend.Factor.ZERO;
+            case GL11.GL_ONE: return Blend.Factor.ONE;
+            case GL11.GL_SRC_COLOR: return Blend.Factor.SRC_COLOR;
+            case GL11.GL_ONE_MINUS_SRC_COLOR: return Blend.Factor.ONE_MINUS_SRC_COLOR;
+            case GL11.GL_DST_COLOR: return Blend.Factor.DST_COLOR;
+            case GL11.GL_ONE_MINUS_DST_COLOR: return Blend.Factor.ONE_MINUS_DST_COLOR;
+            case GL11.GL_SRC_ALPHA: return Blend.Factor.SRC_ALPHA;
+            case GL11.GL_ONE_MINUS_SRC_ALPHA: return Blend.Factor.ONE_MINUS_SRC_ALPHA;
+            case GL11.GL_DST_ALPHA: return Blend.Factor.DST_ALPHA;
+            case GL11.GL_ONE_MINUS_DST_ALPHA: return Blend.Factor.ONE_MINUS_DST_ALPHA;
+            case GL14.GL_CONSTANT_COLOR: return Blend.Factor.CONSTANT_COLOR;
+            case GL14.GL_ONE_MINUS_CONSTANT_COLOR: return Blend.Factor.ONE_MINUS_CONSTANT_COLOR;
+            case GL14.GL_CONSTANT_ALPHA: return Blend.Factor.CONSTANT_ALPHA;
+            case GL14.GL_ONE_MINUS_CONSTANT_ALPHA: return Blend.Factor.ONE_MINUS_CONSTANT_ALPHA;
+            case GL11.GL_SRC_ALPHA_SATURATE: return Blend.Factor.SRC_ALPHA_SATURATE;
+            default: throw new UnsupportedOperationException("Unsupported blend factor " + glFactor + "!");
+        }
+    }
+
+    /**
+     * Unpacks the pipeline state of a key, which only happens when a pipeline has to be created
+     */
+    public static PipelineState getPipelineState(int key) {
+        Blend blend = null;
+        if ((key & BLEND) != 0) {
+            blend = new Blend(
+                    Blend.Factor.VALUES[(key >>> SRC_COLOR_SHIFT) & FACTOR_MASK], Blend.Operator.ADD,
+                    Blend.Factor.VALUES[(key >>> DST_COLOR_SHIFT) & FACTOR_MASK],
+                    Blend.Factor.VALUES[(key >>> SRC_ALPHA_SHIFT) & FACTOR_MASK], Blend.Operator.ADD,
+                    Blend.Factor.VALUES[(key >>> DST_ALPHA_SHIFT) & FACTOR_MASK]
+            );
+        }
+
+        return new PipelineState(blend, (key & CULL) != 0, (key & DEPTH_TEST) != 0, (key & DEPTH_WRITE) != 0,
+                PipelineState.CompareOperator.VALUES[(key >>> DEPTH_FUNC_SHIFT) & DEPTH_FUNC_MASK],
+                PipelineState.Topology.VALUES[(key >>> TOPOLOGY_SHIFT) & TOPOLOGY_MASK]);
+    }
+}
@@ -2,11 +2,14 @@ package io.github.lunbun.quasar.client.render;
 
 import io.github.lunbun.pulsar.PulsarApplication;
 import io.github.lunbun.pulsar.component.drawing.CommandBuffer;
+import io.github.lunbun.pulsar.component.drawing.Framebuffer;
+import io.github.lunbun.pulsar.component.pipeline.RenderPass;
+import io.github.lunbun.pulsar.util.misc.RenderPassRecorder;
 
 /**
  * A renderer which uses Pulsar to interact with Vulkan.
  */
-public interface VulkanRenderer {
+public interface VulkanRenderer extends RenderPassRecorder {
     /**
      * Initialize all Pulsar elements the renderer will use.
      */
@@ -30,11 +33,25 @@ public interface VulkanRenderer {
     void destroyFramebuffers();
 
     /**
-     * Record rendering data into a command buffer. This is called every frame, and you can use this to run events each
-     * frame.
+     * @return the render pass that the renderer draws in, which the primary command buffer begins
+     */
+    @Override
+    RenderPass getRenderPass();
+
+    /**
+     * @param index the index of the swap chain image
+     */
+    @Override
+    Framebuffer getFramebuffer(int index);
+
+    /**
+     * Record rendering data into a secondary command buffer, inside of the render pass of the renderer. This is called
+     * every frame, possibly on a worker thread in parallel with other renderers, and you can use this to run events
+     * each frame.
      * @param buffer the command buffer to record into
      * @param framebufferIndex the index of the swap chain image to get the framebuffer from
      * @param currentFrame the index of the current frame in flight
      */
-    void recordCommandBuffers(CommandBuffer buffer, int framebufferIndex, int currentFrame);
+    @Override
+    void record(CommandBuffer buffer, int framebufferIndex, int currentFrame);
 }
@@ -1,189 +1,197 @@
 package io.github.lunbun.quasar.client.render.immediate;
 
-import io.github.lunbun.pulsar.PulsarApplication;
-import io.github.lunbun.pulsar.component.drawing.CommandBuffer;
-import io.github.lunbun.pulsar.component.drawing.Framebuffer;
 import io.github.lunbun.pulsar.component.pipeline.GraphicsPipeline;
 import io.github.lunbun.pulsar.component.pipeline.RenderPass;
 import io.github.lunbun.pulsar.component.pipeline.Shader;
-import io.github.lunbun.pulsar.component.texture.Texture;
 import io.github.lunbun.pulsar.component.uniform.DescriptorSetLayout;
-import io.github.lunbun.pulsar.component.uniform.Uniform;
 import io.github.lunbun.pulsar.component.vertex.Buffer;
+import io.github.lunbun.pulsar.component.vertex.StreamBuffer;
 import io.github.lunbun.pulsar.component.vertex.Vertex;
-import io.github.lunbun.pulsar.struct.pipeline.Blend;
-import io.github.lunbun.pulsar.struct.uniform.DescriptorSetConfiguration;
-import io.github.lunbun.pulsar.struct.uniform.UniformConfiguration;
-import io.github.lunbun.pulsar.struct.vertex.Mesh;
-import io.github.lunbun.pulsar.util.shader.ShaderType;
-import io.github.lunbun.pulsar.util.uniform.DescriptorSetType;
+import io.github.lunbun.pulsar.struct.pipeline.PipelineState;
 import io.github.lunbun.pulsar.util.vulkan.DataType;
 import io.github.lunbun.quasar.client.render.QuasarRenderer;
-import io.github.lunbun.quasar.client.util.QuasarSettings;
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import org.joml.Matrix4f;
-
-import java.nio.ByteBuffer;
-import java.util.List;
-import java.util.Objects;
-import java.util.function.Consumer;
-
-public enum Immediate {
-    POSITION_COLOR(vertexBuilder -> {
-        vertexBuilder.attribute(DataType.VEC3, 0);
-        vertexBuilder.attribute(DataType.UINT, 1);
-    }, new Shader("shaders/positionColor.vert", "shaders/positionColor.frag"), false);
+import io.github.lunbun.quasar.client.render.RenderStateTracker;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import net.minecraft.client.render.VertexFormat;
+import net.minecraft.client.render.VertexFormatElement;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * The batch of a single vertex format. Vertices are appended to a stream of the format, and submitted to the
+ * {@link Immediates} they belong to, which records the draws of every format in the order they were submitted.
+ */
+public final class Immediate {
+    private static final int POSITION_LOCATION = 0;
+    private static final int COLOR_LOCATION = 1;
+
+    private final Immediates immediates;
+    // we don't actually use vertex builder to create vertices, we just use it to get the layout of the vertex
+    public final Vertex.Builder vertexBuilder;
+    private final Shader shader;
+    // pipelines by the render state key they were created for. They are created the first time the format is drawn
+    // with a state, and again after the swap chain has been recreated.
+    private final Int2ObjectMap<GraphicsPipeline> pipelines = new Int2ObjectOpenHashMap<>();
 
-    public static Immediate[] VALUES = Immediate.values();
+    // vertices of every draw are appended to the stream, and each draw is a range of it. Minecraft 1.16 draws every
+    // mode with glDrawArrays, so there are no indices besides the shared quad indices.
+    private final StreamBuffer vertices;
 
-    private final Consumer<Vertex.Builder> attributeWriter;
-    private final boolean useIndexBuffer;
-    private final Shader shader;
-    private Blend blendFunc;
-    private DescriptorSetLayout descriptorSetLayout;
-    private Vertex.Builder vertexBuilder;
-    private Uniform uniform;
-    private RenderPass renderPass;
-    private GraphicsPipeline graphicsPipeline;
-    private final List<Framebuffer> framebuffers = new ObjectArrayList<>();
-    private List<ImmediateFrame> frames;
-    private Matrix4f matrix;
-    private List<Mesh> submittedMeshes;
-    private Texture texture;
-
-    private ByteBuffer vertices;
-    private ByteBuffer indices;
-
-    Immediate(Consumer<Vertex.Builder> attributeWriter, Shader shader, boolean useIndexBuffer) {
-        this.attributeWriter = attributeWriter;
+    Immediate(Immediates immediates, Vertex.Builder vertexBuilder, Shader shader) {
+        this.immediates = immediates;
+        this.vertexBuilder = vertexBuilder;
         this.shader = shader;
-        this.useIndexBuffer = useIndexBuffer;
+
+        this.vertices = QuasarRenderer.pulsar.buffers.createStreamBuffer(Buffer.Type.VERTEX,
+                this.vertexBuilder.sizeof());
+        QuasarRenderer.pulsar.frameRenderer.addFrameHandler(this.vertices::beginFrame);
     }
 
-    public void init() {
-        // we don't actually use vertex builder to create vertices, we just use it to get the size of the vertex
-        this.vertexBuilder = new Vertex.Builder();
-        attributeWriter.accept(this.vertexBuilder);
-
-        Uniform.Builder uniformBuilder = new Uniform.Builder();
-        uniformBuilder.uniform(DataType.MAT4);
-        this.uniform = uniformBuilder.createUniform();
-        this.matrix = new Matrix4f();
-        this.uniform.set(0, this.matrix);
-        this.matrix.identity();
-        this.matrix.m11(-this.matrix.m11());
-
-        this.descriptorSetLayout = QuasarRenderer.pulsar.descriptorSetLayouts.createDescriptorSetLayout(0,
-                DescriptorSetType.UNIFORM, ShaderType.VERTEX_SHADER);
-
-        this.blendFunc = new Blend(
-                Blend.Factor.SRC_ALPHA, Blend.Operator.ADD, Blend.Factor.ONE_MINUS_SRC_ALPHA,
-                Blend.Factor.ONE, Blend.Operator.ADD, Blend.Factor.ZERO
-        );
-
-        this.frames = new ObjectArrayList<>();
-        for (int i = 0; i < PulsarApplication.MAX_FRAMES_IN_FLIGHT; ++i) {
-            ImmediateFrame frame = new ImmediateFrame();
-            this.frames.add(frame);
-            frame.descriptorSet = QuasarRenderer.pulsar.descriptorPool.allocateSet(descriptorSetLayout);
-            frame.uniformBuffer = QuasarRenderer.pulsar.buffers.createUniformBuffer(uniformBuilder.sizeof(), true);
-            QuasarRenderer.pulsar.buffers.uploadUniform(frame.uniformBuffer, this.uniform);
-            frame.descriptorSet.configure(new DescriptorSetConfiguration[] {
-                    new UniformConfiguration(frame.uniformBuffer, 0)
-            });
+    /**
+     * Derives the vertex layout and shader of a Minecraft vertex format. Positions and colors are read by the shaders,
+     * every other element is skipped over as padding.
+     */
+    static Immediate create(Immediates immediates, VertexFormat format) {
+        Vertex.Builder vertexBuilder = new Vertex.Builder();
+        boolean hasColor = false;
+        for (VertexFormatElement element : format.getElements()) {
+            if (element.getType() == VertexFormatElement.Type.POSITION) {
+                if (element.getFormat() != VertexFormatElement.Format.FLOAT || element.getSize() != DataType.VEC3.size) {
+                    throw new UnsupportedOperationException("Unsupported position element " + element + "!");
+                }
+                vertexBuilder.attribute(DataType.VEC3, POSITION_LOCATION);
+            } else if (!hasColor && element.getType() == VertexFormatElement.Type.COLOR &&
+                    element.getFormat() == VertexFormatElement.Format.UBYTE &&
+                    element.getSize() == DataType.UBYTE4.size) {
+                vertexBuilder.attribute(DataType.UBYTE4, COLOR_LOCATION);
+                hasColor = true;
+            } else {
+                // texture coordinates, lightmap coordinates and normals aren't read yet
+                vertexBuilder.padding(element.getSize());
+            }
+        }
+
+        if (vertexBuilder.sizeof() != format.getVertexSize()) {
+            throw new RuntimeException("Vertex layout does not match vertex format " + format + "!");
         }
 
-        this.submittedMeshes = new ObjectArrayList<>();
-        this.vertices = ByteBuffer.allocate(0);
-        this.indices = ByteBuffer.allocate(0);
-        this.texture = QuasarRenderer.pulsar.textureLoader.loadFile(
-                Objects.requireNonNull(ClassLoader.getSystemClassLoader().getResource("textures/texture.jpg"))
-                        .toExternalForm());
+        Shader shader = hasColor ?
+                new Shader("shaders/positionColor.vert", "shaders/positionColor.frag") :
+                new Shader("shaders/position.vert", "shaders/positionColor.frag");
+        return new Immediate(immediates, vertexBuilder, shader);
     }
 
-    private void recreateFrame(int currentFrame) {
-        ImmediateFrame frame = this.frames.get(currentFrame);
-
-        for (Mesh mesh : frame.meshes) {
-            mesh.destroy();
+    public GraphicsPipeline getPipeline(int stateKey, RenderPass renderPass, DescriptorSetLayout descriptorSetLayout) {
+        GraphicsPipeline graphicsPipeline = this.pipelines.get(stateKey);
+        if (graphicsPipeline == null) {
+            graphicsPipeline = QuasarRenderer.pulsar.pipelines.createPipeline(this.shader,
+                    RenderStateTracker.getPipelineState(stateKey), renderPass, descriptorSetLayout, this.vertexBuilder);
+            this.pipelines.put(stateKey, graphicsPipeline);
         }
+        return graphicsPipeline;
+    }
 
-        frame.meshes.clear();
-        frame.meshes.addAll(this.submittedMeshes);
-        this.submittedMeshes.clear();
+    /**
+     * Forgets the pipelines, since the swap chain destroys every pipeline when it is recreated
+     */
+    public void destroyPipelines() {
+        this.pipelines.clear();
     }
 
     public void submitMesh() {
-        int vertexCount = this.vertices.capacity() / this.vertexBuilder.sizeof();
-        Buffer vbo = QuasarRenderer.pulsar.buffers.createVertexBuffer(vertexCount, this.vertices.capacity(),
-                QuasarSettings.USE_IMMEDIATE_STAGING);
-        QuasarRenderer.pulsar.buffers.uploadBuffer(vbo, this.vertices);
-        Buffer ibo = null;
-        if (this.useIndexBuffer) {
-            int indexCount = this.indices.capacity() / Short.BYTES;
-            ibo = QuasarRenderer.pulsar.buffers.createIndexBuffer(indexCount, QuasarSettings.USE_IMMEDIATE_STAGING);
-            QuasarRenderer.pulsar.buffers.uploadBuffer(ibo, this.indices);
-        }
-
-        this.submittedMeshes.add(new Mesh(vbo, ibo));
+        this.submit(false, PipelineState.Topology.TRIANGLE_LIST);
+    }
 
-        this.vertices = ByteBuffer.allocate(0);
-        this.indices = ByteBuffer.allocate(0);
+    /**
+     * Submits the vertices added since the last submit as quads, every 4 vertices are drawn as 2 triangles using the
+     * shared quad index buffer
+     */
+    public void submitQuads() {
+        this.submit(true, PipelineState.Topology.TRIANGLE_LIST);
     }
 
-    public void destroy() {
-        this.texture.destroy();
-        this.descriptorSetLayout.destroy();
+    /**
+     * Submits the vertices added since the last submit as lines, every 2 vertices are drawn as a line
+     */
+    public void submitLines() {
+        this.submit(false, PipelineState.Topology.LINE_LIST);
+    }
 
-        for (ImmediateFrame frame : this.frames) {
-            for (Mesh mesh : frame.meshes) {
-                mesh.destroy();
-            }
-            frame.uniformBuffer.destroy();
+    private void submit(boolean quads, PipelineState.Topology topology) {
+        StreamBuffer.Range vertices = this.vertices.finish();
+        if (vertices.count == 0) {
+            return;
         }
+        this.immediates.submit(this, vertices, quads, topology);
     }
 
-    public void destroyFramebuffers() {
-        QuasarRenderer.pulsar.framebuffers.destroy(this.framebuffers);
+    /**
+     * Copies vertices straight from native memory (like the buffer of a BufferBuilder) into the vertex stream
+     */
+    public void addVertices(long address, long size) {
+        this.vertices.append(address, size);
     }
 
-    public void recreateFramebuffers() {
-        this.renderPass = QuasarRenderer.pulsar.renderPasses.createRenderPass();
-        this.graphicsPipeline = QuasarRenderer.pulsar.pipelines.createPipeline(this.shader, this.blendFunc,
-                this.renderPass, this.descriptorSetLayout, this.vertexBuilder);
-        QuasarRenderer.pulsar.framebuffers.createFramebuffers(this.renderPass, this.framebuffers);
+    /**
+     * Adds a triangle strip as a list of triangles, so that it can be merged with other draws. Every other triangle
+     * has its first two vertices swapped, which keeps the winding of the strip.
+     */
+    public void addTriangleStrip(long address, int count) {
+        if (count < 3) {
+            return;
+        }
+
+        int stride = this.vertexBuilder.sizeof();
+        long dst = this.vertices.reserve((long) (count - 2) * 3 * stride);
+        for (int i = 0; i < count - 2; ++i) {
+            boolean odd = (i & 1) != 0;
+            dst = copyVertex(address, odd ? i + 1 : i, dst, stride);
+            dst = copyVertex(address, odd ? i : i + 1, dst, stride);
+            dst = copyVertex(address, i + 2, dst, stride);
+        }
     }
 
-    public void recordCommandBuffers(CommandBuffer buffer, int framebufferIndex, int currentFrame) {
-        Framebuffer framebuffer = this.framebuffers.get(framebufferIndex);
+    /**
+     * Adds a triangle fan as a list of triangles, which all share the first vertex
+     */
+    public void addTriangleFan(long address, int count) {
+        if (count < 3) {
+            return;
+        }
 
-        recreateFrame(currentFrame);
+        int stride = this.vertexBuilder.sizeof();
+        long dst = this.vertices.reserve((long) (count - 2) * 3 * stride);
+        for (int i = 0; i < count - 2; ++i) {
+            dst = copyVertex(address, 0, dst, stride);
+            dst = copyVertex(address, i + 1, dst, stride);
+            dst = copyVertex(address, i + 2, dst, stride);
+        }
+    }
 
-        ImmediateFrame frame = this.frames.get(currentFrame);
+    /**
+     * Adds a line strip as a list of lines
+     * @param loop if the last vertex is connected back to the first one
+     */
+    public void addLineStrip(long address, int count, boolean loop) {
+        if (count < 2) {
+            return;
+        }
 
-        buffer.startRenderPass(this.renderPass, framebuffer);
-        buffer.bindPipeline(this.graphicsPipeline);
-        buffer.bindDescriptorSet(this.graphicsPipeline, frame.descriptorSet);
-        for (Mesh mesh : frame.meshes) {
-            buffer.bindMesh(mesh);
-            buffer.drawMesh(mesh, 1, 0, 0);
+        int stride = this.vertexBuilder.sizeof();
+        int lines = loop ? count : count - 1;
+        long dst = this.vertices.reserve((long) lines * 2 * stride);
+        for (int i = 0; i < lines; ++i) {
+            dst = copyVertex(address, i, dst, stride);
+            dst = copyVertex(address, (i + 1) % count, dst, stride);
         }
-        buffer.endRenderPass();
     }
 
-    public void addVertices(ByteBuffer buffer) {
-        ByteBuffer previous = this.vertices;
-        this.vertices = ByteBuffer.allocate(this.vertices.capacity() + buffer.capacity());
-        this.vertices.put(previous);
-        this.vertices.put(buffer);
-        this.vertices.rewind();
+    private static long copyVertex(long address, int index, long dst, int stride) {
+        MemoryUtil.memCopy(address + (long) index * stride, dst, stride);
+        return dst + stride;
     }
 
-    public void addIndices(ByteBuffer buffer) {
-        ByteBuffer previous = this.indices;
-        this.indices = ByteBuffer.allocate(this.indices.capacity() + buffer.capacity());
-        this.indices.put(previous);
-        this.indices.put(buffer);
-        this.indices.rewind();
+    public void destroy() {
+        this.vertices.destroy();
     }
 }
@@ -0,0 +1,21 @@
+package io.github.lunbun.quasar.client.render.immediate;
+
+import io.github.lunbun.pulsar.component.vertex.StreamBuffer;
+
+public final class ImmediateDraw {
+    // the batch of the vertex format that the draw was submitted to
+    public final Immediate immediate;
+    public final StreamBuffer.Range vertices;
+    // quads are drawn with the shared quad index buffer
+    public final boolean quads;
+    // the render state the draw was submitted with, which picks its pipeline
+    public final int stateKey;
+
+    public ImmediateDraw(Immediate immediate, StreamBuffer.Range vertices, boolean quads,
+                         int stateKey) {
+        this.immediate = immediate;
+        this.vertices = vertices;
+        this.quads = quads;
+        this.stateKey = stateKey;
+    }
+}
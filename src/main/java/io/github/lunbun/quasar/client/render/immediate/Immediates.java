@@ -1,41 +1,211 @@
 package io.github.lunbun.quasar.client.render.immediate;
 
+import io.github.lunbun.pulsar.PulsarApplication;
 import io.github.lunbun.pulsar.component.drawing.CommandBuffer;
+import io.github.lunbun.pulsar.component.drawing.Framebuffer;
+import io.github.lunbun.pulsar.component.pipeline.GraphicsPipeline;
+import io.github.lunbun.pulsar.component.pipeline.RenderPass;
+import io.github.lunbun.pulsar.component.uniform.DescriptorSetLayout;
+import io.github.lunbun.pulsar.component.uniform.Uniform;
+import io.github.lunbun.pulsar.component.vertex.QuadIndexBuffer;
+import io.github.lunbun.pulsar.component.vertex.StreamBuffer;
+import io.github.lunbun.pulsar.struct.pipeline.PipelineState;
+import io.github.lunbun.pulsar.struct.uniform.DescriptorSetConfiguration;
+import io.github.lunbun.pulsar.struct.uniform.UniformConfiguration;
+import io.github.lunbun.pulsar.struct.vertex.BufferData;
+import io.github.lunbun.pulsar.util.shader.ShaderType;
+import io.github.lunbun.pulsar.util.uniform.DescriptorSetType;
+import io.github.lunbun.pulsar.util.vulkan.DataType;
+import io.github.lunbun.quasar.client.render.QuasarRenderer;
+import io.github.lunbun.quasar.client.render.RenderStateTracker;
 import io.github.lunbun.quasar.client.render.VulkanRenderer;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import net.minecraft.client.render.VertexFormat;
+import org.joml.Matrix4f;
 
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Draws the immediate mode geometry of every vertex format. An {@link Immediate} is created for a vertex format the
+ * first time it is drawn, and its draws are recorded in the order they were submitted, in a single render pass shared
+ * by every format.
+ */
 public final class Immediates implements VulkanRenderer {
+    private final Map<VertexFormat, Immediate> immediates = new Object2ObjectOpenHashMap<>();
+    private DescriptorSetLayout descriptorSetLayout;
+    private Uniform uniform;
+    private RenderPass renderPass;
+    private final List<Framebuffer> framebuffers = new ObjectArrayList<>();
+    private List<ImmediateFrame> frames;
+    private Matrix4f matrix;
+    private List<ImmediateDraw> submittedDraws;
+
     @Override
     public void init() {
-        for (Immediate immediate : Immediate.VALUES) {
-            immediate.init();
+        Uniform.Builder uniformBuilder = new Uniform.Builder();
+        uniformBuilder.uniform(DataType.MAT4);
+        this.uniform = uniformBuilder.createUniform();
+        this.matrix = new Matrix4f();
+        this.uniform.set(0, this.matrix);
+        this.matrix.identity();
+        this.matrix.m11(-this.matrix.m11());
+
+        this.descriptorSetLayout = QuasarRenderer.pulsar.descriptorSetLayouts.createDescriptorSetLayout(0,
+                DescriptorSetType.UNIFORM, ShaderType.VERTEX_SHADER);
+
+        // every vertex format shares the descriptor sets, since they all read the same uniform
+        this.frames = new ObjectArrayList<>();
+        for (int i = 0; i < PulsarApplication.MAX_FRAMES_IN_FLIGHT; ++i) {
+            ImmediateFrame frame = new ImmediateFrame();
+            this.frames.add(frame);
+            frame.descriptorSet = QuasarRenderer.pulsar.descriptorPool.allocateSet(descriptorSetLayout);
+            frame.uniformBuffer = QuasarRenderer.pulsar.buffers.createUniformBuffer(uniformBuilder.sizeof(), true);
+            QuasarRenderer.pulsar.buffers.uploadUniform(frame.uniformBuffer, this.uniform);
+            frame.descriptorSet.configure(new DescriptorSetConfiguration[] {
+                    new UniformConfiguration(frame.uniformBuffer, 0)
+            });
+        }
+
+        this.submittedDraws = new ObjectArrayList<>();
+    }
+
+    /**
+     * Gets the batch of a vertex format, creating it if the format hasn't been drawn before. Pipelines of new formats
+     * are created when they are first recorded.
+     */
+    public Immediate get(VertexFormat format) {
+        Immediate immediate = this.immediates.get(format);
+        if (immediate == null) {
+            immediate = Immediate.create(this, format);
+            this.immediates.put(format, immediate);
         }
+        return immediate;
+    }
+
+    private void recreateFrame(int currentFrame) {
+        ImmediateFrame frame = this.frames.get(currentFrame);
+
+        // the ranges of the previous draws were freed with their frame
+        frame.draws.clear();
+        frame.draws.addAll(this.submittedDraws);
+        this.submittedDraws.clear();
+    }
+
+    void submit(Immediate immediate, StreamBuffer.Range vertices, boolean quads, PipelineState.Topology topology) {
+        if (quads) {
+            QuasarRenderer.pulsar.quadIndices.ensureCapacity(vertices.count / 4);
+        }
+
+        // a draw right after another one in the same stream buffer with the same state is merged into it. Quads are
+        // merged too, since the quad indices are the same for every quad. The topology is part of the key, so only
+        // draws of the same topology are merged.
+        int stateKey = RenderStateTracker.getPipelineKey(topology);
+        int last = this.submittedDraws.size() - 1;
+        if (last >= 0) {
+            ImmediateDraw previous = this.submittedDraws.get(last);
+            if (previous.immediate == immediate && previous.quads == quads &&
+                    previous.stateKey == stateKey &&
+                    previous.vertices.buffer == vertices.buffer &&
+                    previous.vertices.first + previous.vertices.count == vertices.first) {
+                this.submittedDraws.set(last, new ImmediateDraw(immediate, new StreamBuffer.Range(vertices.buffer,
+                        previous.vertices.first, previous.vertices.count + vertices.count), quads, stateKey));
+                if (quads) {
+                    QuasarRenderer.pulsar.quadIndices.ensureCapacity((previous.vertices.count + vertices.count) / 4);
+                }
+                return;
+            }
+        }
+
+        this.submittedDraws.add(new ImmediateDraw(immediate, vertices, quads, stateKey));
     }
 
     @Override
     public void destroy() {
-        for (Immediate immediate : Immediate.VALUES) {
+        this.descriptorSetLayout.destroy();
+
+        for (ImmediateFrame frame : this.frames) {
+            frame.draws.clear();
+            frame.uniformBuffer.destroy();
+        }
+        for (Immediate immediate : this.immediates.values()) {
             immediate.destroy();
         }
+        this.immediates.clear();
     }
 
     @Override
     public void destroyFramebuffers() {
-        for (Immediate immediate : Immediate.VALUES) {
-            immediate.destroyFramebuffers();
+        QuasarRenderer.pulsar.framebuffers.destroy(this.framebuffers);
+        for (Immediate immediate : this.immediates.values()) {
+            immediate.destroyPipelines();
         }
     }
 
     @Override
     public void recreateFramebuffers() {
-        for (Immediate immediate : Immediate.VALUES) {
-            immediate.recreateFramebuffers();
-        }
+        this.renderPass = QuasarRenderer.pulsar.renderPasses.createRenderPass();
+        QuasarRenderer.pulsar.framebuffers.createFramebuffers(this.renderPass, this.framebuffers);
     }
 
     @Override
-    public void recordCommandBuffers(CommandBuffer buffer, int framebufferIndex, int currentFrame) {
-        for (Immediate immediate : Immediate.VALUES) {
-            immediate.recordCommandBuffers(buffer, framebufferIndex, currentFrame);
+    public RenderPass getRenderPass() {
+        return this.renderPass;
+    }
+
+    @Override
+    public Framebuffer getFramebuffer(int index) {
+        return this.framebuffers.get(index);
+    }
+
+    @Override
+    public void record(CommandBuffer buffer, int framebufferIndex, int currentFrame) {
+        recreateFrame(currentFrame);
+
+        ImmediateFrame frame = this.frames.get(currentFrame);
+
+        // draws share their stream buffers, so buffers are only bound when a stream has grown or the format changes
+        Immediate immediate = null;
+        int stateKey = 0;
+        GraphicsPipeline graphicsPipeline = null;
+        BufferData vertexBuffer = null;
+        BufferData indexBuffer = null;
+        for (ImmediateDraw draw : frame.draws) {
+            if (draw.immediate != immediate || draw.stateKey != stateKey) {
+                immediate = draw.immediate;
+                stateKey = draw.stateKey;
+                GraphicsPipeline previous = graphicsPipeline;
+                graphicsPipeline = immediate.getPipeline(stateKey, this.renderPass, this.descriptorSetLayout);
+                buffer.bindPipeline(graphicsPipeline);
+                if (previous == null) {
+                    // every pipeline has the same layout, so the descriptor set stays bound between them
+                    buffer.bindDescriptorSet(graphicsPipeline, frame.descriptorSet);
+                }
+            }
+
+            if (draw.vertices.buffer != vertexBuffer) {
+                vertexBuffer = draw.vertices.buffer;
+                buffer.bindVertexBuffer(vertexBuffer);
+            }
+
+            if (draw.quads) {
+                QuadIndexBuffer quadIndices = QuasarRenderer.pulsar.quadIndices;
+                if (quadIndices.buffer != indexBuffer) {
+                    indexBuffer = quadIndices.buffer;
+                    buffer.bindIndexBuffer(indexBuffer);
+                }
+
+                // 16 bit indices only reach so many quads, so long draws are split
+                int quadCount = draw.vertices.count / 4;
+                for (int quad = 0; quad < quadCount; quad += QuadIndexBuffer.MAX_QUADS) {
+                    int quads = Math.min(quadCount - quad, QuadIndexBuffer.MAX_QUADS);
+                    buffer.drawIndexed(quads * QuadIndexBuffer.INDICES_PER_QUAD, 1, 0,
+                            draw.vertices.first + quad * 4, 0);
+                }
+            } else {
+                buffer.draw(draw.vertices.count, 1, draw.vertices.first, 0);
+            }
         }
     }
 }
@@ -51,6 +51,8 @@ public final class TestRenderer implements VulkanRenderer {
     public List<TestFrame> frames;
     public Mesh mesh;
     public List<Framebuffer> framebuffers;
+    // the mesh is recorded into cached command buffers, which have to be recorded again when it is moved
+    private volatile boolean dirty;
 
     @Override
     public void init() {
@@ -72,6 +74,9 @@ public final class TestRenderer implements VulkanRenderer {
         QuasarRenderer.pulsar.buffers.uploadVertices(vertexBuffer, vertices);
         QuasarRenderer.pulsar.buffers.uploadIndices(indexBuffer, indices);
         this.mesh = new Mesh(vertexBuffer, indexBuffer);
+        this.dirty = true;
+        vertexBuffer.addMoveHandler(ignored -> this.dirty = true);
+        indexBuffer.addMoveHandler(ignored -> this.dirty = true);
 
         this.framebuffers = new ObjectArrayList<>();
 
@@ -140,8 +145,29 @@ public final class TestRenderer implements VulkanRenderer {
     }
 
     @Override
-    public void recordCommandBuffers(CommandBuffer buffer, int framebufferIndex, int currentFrame) {
-        Framebuffer framebuffer = this.framebuffers.get(framebufferIndex);
+    public RenderPass getRenderPass() {
+        return this.renderPass;
+    }
+
+    @Override
+    public Framebuffer getFramebuffer(int index) {
+        return this.framebuffers.get(index);
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public boolean isDirty() {
+        boolean dirty = this.dirty;
+        this.dirty = false;
+        return dirty;
+    }
+
+    @Override
+    public void update(int framebufferIndex, int currentFrame) {
         TestFrame frame = this.frames.get(currentFrame);
 
         this.model.rotation((float) (GLFWWindow.getTime() * Math.toRadians(90)), 0, 0, 1);
@@ -153,12 +179,15 @@ public final class TestRenderer implements VulkanRenderer {
         this.uniform.set(1, this.view);
         this.uniform.set(2, this.proj);
         QuasarRenderer.pulsar.buffers.uploadUniform(frame.uniformBuffer, this.uniform);
+    }
+
+    @Override
+    public void record(CommandBuffer buffer, int framebufferIndex, int currentFrame) {
+        TestFrame frame = this.frames.get(currentFrame);
 
-        buffer.startRenderPass(this.renderPass, framebuffer);
         buffer.bindPipeline(this.graphicsPipeline);
         buffer.bindDescriptorSet(this.graphicsPipeline, frame.descriptorSet);
         buffer.bindMesh(this.mesh);
         buffer.drawMesh(this.mesh, 1, 0, 0);
-        buffer.endRenderPass();
     }
 }
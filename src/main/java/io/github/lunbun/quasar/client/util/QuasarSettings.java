@@ -1,5 +1,6 @@
 package io.github.lunbun.quasar.client.util;
 
 public class QuasarSettings {
-    public static final boolean USE_IMMEDIATE_STAGING = false;
+    // milliseconds between logging memory statistics, 0 to never log them
+    public static final long MEMORY_STATISTICS_INTERVAL = 30000;
 }
@@ -7,6 +7,9 @@ import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Overwrite;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
 @Mixin(MinecraftClient.class)
 public class MixinMinecraftClient {
@@ -20,4 +23,10 @@ public class MixinMinecraftClient {
     public void onResolutionChanged() {
         QuasarRenderer.resizeFramebuffer(this.window.getFramebufferWidth(), this.window.getFramebufferHeight());
     }
+
+    // the low latency pacer sleeps here, before the frame ticks and handles input, instead of when it is drawn
+    @Inject(at = @At(value = "HEAD"), method = "render")
+    private void beginFrame(boolean tick, CallbackInfo ci) {
+        QuasarRenderer.beginFrame();
+    }
 }
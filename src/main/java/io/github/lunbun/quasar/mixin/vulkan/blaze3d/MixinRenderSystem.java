@@ -2,8 +2,8 @@ package io.github.lunbun.quasar.mixin.vulkan.blaze3d;
 
 import com.mojang.blaze3d.platform.GlStateManager;
 import com.mojang.blaze3d.systems.RenderSystem;
-import io.github.lunbun.quasar.Quasar;
 import io.github.lunbun.quasar.client.render.QuasarRenderer;
+import io.github.lunbun.quasar.client.render.RenderStateTracker;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Overwrite;
 import org.spongepowered.asm.mixin.Shadow;
@@ -28,46 +28,127 @@ public class MixinRenderSystem {
 
     /**
      * @author Lunbun
-     * @reason Remove OpenGL calls
+     * @reason Track state for pipelines instead of calling OpenGL
      */
     @Overwrite
     public static void enableBlend() {
-        Quasar.LOGGER.warn("Tried to enable blend!");
+        RenderStateTracker.setBlend(true);
     }
 
     /**
      * @author Lunbun
-     * @reason Remove OpenGL calls
+     * @reason Track state for pipelines instead of calling OpenGL
      */
     @Overwrite
     public static void disableBlend() {
-        Quasar.LOGGER.warn("Tried to disable blend!");
+        RenderStateTracker.setBlend(false);
     }
 
     /**
      * @author Lunbun
-     * @reason Remove OpenGL calls
+     * @reason Track state for pipelines instead of calling OpenGL
      */
     @Overwrite
-    public static void disableTexture() {
-        Quasar.LOGGER.warn("Tried to disable texture!");
+    public static void blendFunc(GlStateManager.SrcFactor srcFactor, GlStateManager.DstFactor dstFactor) {
+        RenderStateTracker.setBlendFunc(srcFactor, dstFactor, srcFactor, dstFactor);
     }
 
     /**
      * @author Lunbun
-     * @reason Remove OpenGL calls
+     * @reason Track state for pipelines instead of calling OpenGL
      */
     @Overwrite
-    public static void enableTexture() {
-        Quasar.LOGGER.warn("Tried to enable texture!");
+    public static void blendFunc(int srcFactor, int dstFactor) {
+        RenderStateTracker.setBlendFunc(srcFactor, dstFactor, srcFactor, dstFactor);
     }
 
     /**
      * @author Lunbun
-     * @reason Remove OpenGL calls
+     * @reason Track state for pipelines instead of calling OpenGL
      */
     @Overwrite
     public static void blendFuncSeparate(GlStateManager.SrcFactor srcFactor, GlStateManager.DstFactor dstFactor, GlStateManager.SrcFactor srcAlpha, GlStateManager.DstFactor dstAlpha) {
-        Quasar.LOGGER.warn("Tried to change blend function!");
+        RenderStateTracker.setBlendFunc(srcFactor, dstFactor, srcAlpha, dstAlpha);
+    }
+
+    /**
+     * @author Lunbun
+     * @reason Track state for pipelines instead of calling OpenGL
+     */
+    @Overwrite
+    public static void blendFuncSeparate(int srcFactor, int dstFactor, int srcAlpha, int dstAlpha) {
+        RenderStateTracker.setBlendFunc(srcFactor, dstFactor, srcAlpha, dstAlpha);
+    }
+
+    /**
+     * @author Lunbun
+     * @reason Track state for pipelines instead of calling OpenGL
+     */
+    @Overwrite
+    public static void enableTexture() {
+        RenderStateTracker.setTexture(true);
+    }
+
+    /**
+     * @author Lunbun
+     * @reason Track state for pipelines instead of calling OpenGL
+     */
+    @Overwrite
+    public static void disableTexture() {
+        RenderStateTracker.setTexture(false);
+    }
+
+    /**
+     * @author Lunbun
+     * @reason Track state for pipelines instead of calling OpenGL
+     */
+    @Overwrite
+    public static void enableDepthTest() {
+        RenderStateTracker.setDepthTest(true);
+    }
+
+    /**
+     * @author Lunbun
+     * @reason Track state for pipelines instead of calling OpenGL
+     */
+    @Overwrite
+    public static void disableDepthTest() {
+        RenderStateTracker.setDepthTest(false);
+    }
+
+    /**
+     * @author Lunbun
+     * @reason Track state for pipelines instead of calling OpenGL
+     */
+    @Overwrite
+    public static void depthFunc(int func) {
+        RenderStateTracker.setDepthFunc(func);
+    }
+
+    /**
+     * @author Lunbun
+     * @reason Track state for pipelines instead of calling OpenGL
+     */
+    @Overwrite
+    public static void depthMask(boolean mask) {
+        RenderStateTracker.setDepthMask(mask);
+    }
+
+    /**
+     * @author Lunbun
+     * @reason Track state for pipelines instead of calling OpenGL
+     */
+    @Overwrite
+    public static void enableCull() {
+        RenderStateTracker.setCull(true);
+    }
+
+    /**
+     * @author Lunbun
+     * @reason Track state for pipelines instead of calling OpenGL
+     */
+    @Overwrite
+    public static void disableCull() {
+        RenderStateTracker.setCull(false);
     }
 }
@@ -13,7 +13,6 @@ import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
-// TODO: index buffers
 @Mixin(DrawableHelper.class)
 public class MixinDrawableHelper {
     @Inject(at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/systems/RenderSystem;enableBlend()V"),
@@ -24,14 +23,12 @@ public class MixinDrawableHelper {
         BufferBuilder bufferBuilder = Tessellator.getInstance().getBuffer();
         ExtendedBufferVertexConsumer extendedBufferBuilder = (ExtendedBufferVertexConsumer) bufferBuilder;
 
-        bufferBuilder.begin(GL11.GL_TRIANGLES, VertexFormats.POSITION_COLOR);
+        bufferBuilder.begin(GL11.GL_QUADS, VertexFormats.POSITION_COLOR);
         {
-            extendedBufferBuilder.vertex(matrix, (float) x1, (float) y1, 0.0F).color(color).next();
-            extendedBufferBuilder.vertex(matrix, (float) x2, (float) y1, 0.0F).color(color).next();
-            extendedBufferBuilder.vertex(matrix, (float) x2, (float) y2, 0.0F).color(color).next();
-            extendedBufferBuilder.vertex(matrix, (float) x1, (float) y1, 0.0F).color(color).next();
             extendedBufferBuilder.vertex(matrix, (float) x1, (float) y2, 0.0F).color(color).next();
             extendedBufferBuilder.vertex(matrix, (float) x2, (float) y2, 0.0F).color(color).next();
+            extendedBufferBuilder.vertex(matrix, (float) x2, (float) y1, 0.0F).color(color).next();
+            extendedBufferBuilder.vertex(matrix, (float) x1, (float) y1, 0.0F).color(color).next();
         }
         bufferBuilder.end();
 
@@ -1,10 +1,9 @@
 package io.github.lunbun.quasar.mixin.vulkan.render;
 
-import com.mojang.blaze3d.platform.GlStateManager;
+import io.github.lunbun.quasar.client.render.QuasarRenderer;
 import io.github.lunbun.quasar.client.render.immediate.Immediate;
 import net.minecraft.client.render.BufferRenderer;
 import net.minecraft.client.render.VertexFormat;
-import net.minecraft.client.render.VertexFormats;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.system.MemoryUtil;
 import org.spongepowered.asm.mixin.Mixin;
@@ -12,7 +11,6 @@ import org.spongepowered.asm.mixin.Overwrite;
 
 import java.nio.ByteBuffer;
 
-// TODO: don't hardcode vertex formats
 @Mixin(BufferRenderer.class)
 public class MixinBufferRenderer {
     /**
@@ -22,19 +20,52 @@ public class MixinBufferRenderer {
     @Overwrite
     private static void draw(ByteBuffer buffer, int mode, VertexFormat vertexFormat, int count) {
         buffer.clear();
-        if (mode != GL11.GL_TRIANGLES) {
-            throw new UnsupportedOperationException("Cannot draw anything except triangles!");
+        if (count <= 0) {
+            return;
         }
 
-        if (count > 0) {
-            if (vertexFormat == VertexFormats.POSITION_COLOR) {
-                Immediate.POSITION_COLOR.addVertices(buffer);
-                Immediate.POSITION_COLOR.submitMesh();
-            } else {
-                vertexFormat.startDrawing(MemoryUtil.memAddress(buffer));
-                GlStateManager.drawArrays(mode, 0, count);
-                vertexFormat.endDrawing();
-            }
+        Immediate immediate = QuasarRenderer.immediates.get(vertexFormat);
+        // the buffer of a BufferBuilder is native memory, so it is copied straight into mapped memory. Strips, fans
+        // and loops are turned into lists, so that every draw can be merged with the ones next to it.
+        long address = MemoryUtil.memAddress(buffer);
+        switch (mode) {
+            case GL11.GL_TRIANGLES:
+                immediate.addVertices(address, (long) count * vertexFormat.getVertexSize());
+                immediate.submitMesh();
+                break;
+            case GL11.GL_QUADS:
+                immediate.addVertices(address, (long) count * vertexFormat.getVertexSize());
+                immediate.submitQuads();
+                break;
+            case GL11.GL_TRIANGLE_STRIP:
+                immediate.addTriangleStrip(address, count);
+                immediate.submitMesh();
+                break;
+            case GL11.GL_QUAD_STRIP:
+                // a quad strip is a triangle strip, without a vertex left over at the end
+                immediate.addTriangleStrip(address, count & ~1);
+                immediate.submitMesh();
+                break;
+            case GL11.GL_TRIANGLE_FAN:
+            case GL11.GL_POLYGON:
+                immediate.addTriangleFan(address, count);
+                immediate.submitMesh();
+                break;
+            case GL11.GL_LINES:
+                immediate.addVertices(address, (long) count * vertexFormat.getVertexSize());
+                immediate.submitLines();
+                break;
+            case GL11.GL_LINE_STRIP:
+                immediate.addLineStrip(address, count, false);
+                immediate.submitLines();
+                break;
+            case GL11.GL_LINE_LOOP:
+                immediate.addLineStrip(address, count, true);
+                immediate.submitLines();
+                break;
+            default:
+                // points would need a point size written by the shaders, and vanilla doesn't draw any
+                break;
         }
     }
 }
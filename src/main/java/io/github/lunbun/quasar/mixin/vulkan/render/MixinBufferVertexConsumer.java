@@ -27,7 +27,8 @@ public interface MixinBufferVertexConsumer extends ExtendedBufferVertexConsumer
         } else if (vertexFormatElement.getFormat() != VertexFormatElement.Format.UBYTE) {
             throw new IllegalStateException();
         } else {
-            this.putFloat(0, Float.intBitsToFloat(rgba));
+            // colors are stored as r, g, b, a bytes like vanilla colors
+            this.putFloat(0, Float.intBitsToFloat(Integer.reverseBytes(rgba)));
             this.nextElement();
             return this;
         }
@@ -0,0 +1,15 @@
+#version 450
+#extension GL_ARB_separate_shader_objects : enable
+
+layout(binding = 0) uniform UniformBufferObject {
+    mat4 matrix;
+} ubo;
+
+layout(location = 0) in vec3 inPosition;
+
+layout(location = 0) out vec4 fragColor;
+
+void main() {
+    gl_Position = ubo.matrix * vec4(inPosition, 1.0);
+    fragColor = vec4(1.0);
+}
\ No newline at end of file